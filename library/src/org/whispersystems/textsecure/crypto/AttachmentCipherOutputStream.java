@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.crypto;
+
+import org.whispersystems.textsecure.util.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a push attachment as it's written, producing the same
+ * IV || ciphertext || MAC format as {@link AttachmentCipher#encrypt(byte[])}
+ * without holding the attachment in memory.
+ */
+public class AttachmentCipherOutputStream extends FilterOutputStream {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int MAC_SIZE   = 32;
+
+  private final Cipher cipher;
+  private final Mac    mac;
+
+  public AttachmentCipherOutputStream(byte[] combinedKeyMaterial, OutputStream out)
+      throws IOException
+  {
+    super(out);
+
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial,
+                                  AttachmentCipher.CIPHER_KEY_SIZE,
+                                  AttachmentCipher.MAC_KEY_SIZE);
+
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(parts[0], "AES"));
+
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      byte[] iv = cipher.getIV();
+      mac.update(iv);
+      out.write(iv);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    byte[] ciphertext = cipher.update(buffer, offset, length);
+
+    if (ciphertext != null) {
+      mac.update(ciphertext);
+      out.write(ciphertext);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      byte[] ciphertext = cipher.doFinal();
+      mac.update(ciphertext);
+
+      out.write(ciphertext);
+      out.write(mac.doFinal());
+    } catch (IllegalBlockSizeException e) {
+      throw new AssertionError(e);
+    } catch (BadPaddingException e) {
+      throw new AssertionError(e);
+    } finally {
+      super.close();
+    }
+  }
+
+  /**
+   * @return The number of bytes that encrypting <code>plaintextLength</code>
+   *         bytes of data will produce, including the IV and MAC.
+   */
+  public static long getCiphertextLength(long plaintextLength) {
+    return BLOCK_SIZE + (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE + MAC_SIZE;
+  }
+
+}
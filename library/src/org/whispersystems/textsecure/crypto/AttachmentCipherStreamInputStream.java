@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.crypto;
+
+import org.whispersystems.textsecure.util.Util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts a push attachment in a single pass as it arrives, without
+ * first spooling it to disk.
+ *
+ * The MAC trails the ciphertext, so it can only be checked once the
+ * stream is exhausted. Plaintext is returned before that point, and the
+ * final read throws an IOException caused by an {@link InvalidMacException}
+ * if the MAC doesn't match. Callers must discard everything they've read
+ * unless the stream reaches EOF cleanly.
+ */
+public class AttachmentCipherStreamInputStream extends FilterInputStream {
+
+  private static final int BLOCK_SIZE  = 16;
+  private static final int BUFFER_SIZE = 4096;
+
+  private final Cipher cipher;
+  private final Mac    mac;
+  private final byte[] window;
+
+  private int     held;
+  private byte[]  plaintext;
+  private int     plaintextOffset;
+  private boolean done;
+
+  public AttachmentCipherStreamInputStream(InputStream in, byte[] combinedKeyMaterial)
+      throws IOException
+  {
+    super(in);
+
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial,
+                                  AttachmentCipher.CIPHER_KEY_SIZE,
+                                  AttachmentCipher.MAC_KEY_SIZE);
+
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      byte[] iv = new byte[BLOCK_SIZE];
+      Util.readFully(in, iv);
+      this.mac.update(iv);
+
+      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(parts[0], "AES"), new IvParameterSpec(iv));
+
+      this.window = new byte[BUFFER_SIZE + mac.getMacLength()];
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    while (plaintext == null || plaintextOffset == plaintext.length) {
+      if (done) return -1;
+      fill();
+    }
+
+    int count = Math.min(length, plaintext.length - plaintextOffset);
+    System.arraycopy(plaintext, plaintextOffset, buffer, offset, count);
+    plaintextOffset += count;
+
+    return count;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    byte[] buffer  = new byte[BUFFER_SIZE];
+    long   skipped = 0;
+
+    while (skipped < count) {
+      int read = read(buffer, 0, (int)Math.min(buffer.length, count - skipped));
+      if (read == -1) break;
+      skipped += read;
+    }
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return plaintext == null ? 0 : plaintext.length - plaintextOffset;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * Reads the next chunk of ciphertext, always holding back the last
+   * MAC-length bytes seen, since they may turn out to be the MAC itself.
+   */
+  private void fill() throws IOException {
+    int macLength = mac.getMacLength();
+    int read      = in.read(window, held, window.length - held);
+
+    if (read == -1) {
+      finish();
+      return;
+    }
+
+    held += read;
+
+    int ciphertextLength = held - macLength;
+
+    if (ciphertextLength > 0) {
+      mac.update(window, 0, ciphertextLength);
+      setPlaintext(cipher.update(window, 0, ciphertextLength));
+
+      System.arraycopy(window, ciphertextLength, window, 0, macLength);
+      held = macLength;
+    }
+  }
+
+  private void finish() throws IOException {
+    done = true;
+
+    if (held != mac.getMacLength()) {
+      throw new IOException("Attachment shorter than crypto overhead!", new InvalidMacException());
+    }
+
+    byte[] ourMac   = mac.doFinal();
+    byte[] theirMac = Arrays.copyOf(window, held);
+
+    if (!Arrays.equals(ourMac, theirMac)) {
+      throw new IOException("MAC doesn't match!", new InvalidMacException("MAC doesn't match!"));
+    }
+
+    try {
+      setPlaintext(cipher.doFinal());
+    } catch (IllegalBlockSizeException e) {
+      throw new IOException("Illegal block size exception!", e);
+    } catch (BadPaddingException e) {
+      throw new IOException("Bad padding exception!", e);
+    }
+  }
+
+  private void setPlaintext(byte[] plaintext) {
+    this.plaintext       = plaintext;
+    this.plaintextOffset = 0;
+  }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.crypto;
+
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per-thread instances of the primitives used for every message, since
+ * looking them up through the JCA providers costs more than using them.
+ *
+ * Callers must re-initialize an instance before each use, and must finish
+ * with it before calling anything else that might use the same instance.
+ */
+public class CryptoPrimitives {
+
+  private static final ThreadLocal<Mac> HMAC_SHA256 = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance("HmacSHA256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<Cipher> AES_CTR = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance("AES/CTR/NoPadding");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      } catch (NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  public static Mac getHmacSha256() {
+    return HMAC_SHA256.get();
+  }
+
+  public static Cipher getAesCtr() {
+    return AES_CTR.get();
+  }
+
+}
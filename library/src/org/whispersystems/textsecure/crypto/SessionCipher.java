@@ -23,15 +23,20 @@ import org.whispersystems.textsecure.crypto.protocol.CiphertextMessage;
 import org.whispersystems.textsecure.storage.RecipientDevice;
 import org.whispersystems.textsecure.storage.SessionRecordV1;
 import org.whispersystems.textsecure.storage.SessionRecordV2;
+import org.whispersystems.textsecure.util.LockStripes;
 
 public abstract class SessionCipher {
 
-  protected static final Object SESSION_LOCK = new Object();
+  private static final LockStripes SESSION_LOCKS = new LockStripes(32);
 
   public abstract CiphertextMessage encrypt(byte[] paddedMessage);
   public abstract byte[] decrypt(byte[] decodedMessage) throws InvalidMessageException;
   public abstract int getRemoteRegistrationId();
 
+  protected static Object getSessionLock(RecipientDevice recipient) {
+    return SESSION_LOCKS.get(recipient);
+  }
+
   public static SessionCipher createFor(Context context,
                                         MasterSecret masterSecret,
                                         RecipientDevice recipient)
@@ -44,7 +44,7 @@ public class SessionCipherV1 extends SessionCipher {
   }
 
   public CiphertextMessage encrypt(byte[] paddedMessageBody) {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(getRecipientDevice())) {
       SessionCipherContext encryptionContext = getEncryptionContext();
       byte[]               cipherText        = getCiphertext(paddedMessageBody,
                                                              encryptionContext.getSessionKey().getCipherKey(),
@@ -59,7 +59,7 @@ public class SessionCipherV1 extends SessionCipher {
   }
 
   public byte[] decrypt(byte[] decodedCiphertext) throws InvalidMessageException {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(getRecipientDevice())) {
       WhisperMessageV1     message           = new WhisperMessageV1(decodedCiphertext);
       SessionCipherContext decryptionContext = getDecryptionContext(message);
 
@@ -87,6 +87,10 @@ public class SessionCipherV1 extends SessionCipher {
     return 0;
   }
 
+  private RecipientDevice getRecipientDevice() {
+    return new RecipientDevice(recipient.getRecipientId(), RecipientDevice.DEFAULT_DEVICE_ID);
+  }
+
   private SessionCipherContext getEncryptionContext() {
     try {
       KeyRecords records        = getKeyRecords(context, masterSecret, recipient);
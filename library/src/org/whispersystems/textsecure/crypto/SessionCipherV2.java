@@ -17,12 +17,12 @@ import org.whispersystems.textsecure.storage.SessionRecordV2;
 import org.whispersystems.textsecure.util.Conversions;
 
 import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -43,7 +43,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   @Override
   public CiphertextMessage encrypt(byte[] paddedMessage) {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(recipient)) {
       SessionRecordV2 sessionRecord   = getSessionRecord();
       ChainKey        chainKey        = sessionRecord.getSenderChainKey();
       MessageKeys     messageKeys     = chainKey.getMessageKeys();
@@ -74,7 +74,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   @Override
   public byte[] decrypt(byte[] decodedMessage) throws InvalidMessageException {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(recipient)) {
       SessionRecordV2  sessionRecord     = getSessionRecord();
       WhisperMessageV2 ciphertextMessage = new WhisperMessageV2(decodedMessage);
       ECPublicKey      theirEphemeral    = ciphertextMessage.getSenderEphemeral();
@@ -88,7 +88,7 @@ public class SessionCipherV2 extends SessionCipher {
       byte[] plaintext = getPlaintext(messageKeys, ciphertextMessage.getBody());
 
       sessionRecord.clearPendingPreKey();
-      sessionRecord.save();
+      sessionRecord.saveDeferred();
 
       return plaintext;
     }
@@ -96,7 +96,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   @Override
   public int getRemoteRegistrationId() {
-    synchronized (SESSION_LOCK) {
+    synchronized (getSessionLock(recipient)) {
       SessionRecordV2 sessionRecord = getSessionRecord();
       return sessionRecord.getRemoteRegistrationId();
     }
@@ -140,14 +140,15 @@ public class SessionCipherV2 extends SessionCipher {
       }
     }
 
-    if (chainKey.getIndex() - counter > 500) {
+    if (counter - chainKey.getIndex() > 500) {
       throw new InvalidMessageException("Over 500 messages into the future!");
     }
 
-    while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
+    List<MessageKeys> skippedMessageKeys = new LinkedList<MessageKeys>();
+    chainKey = chainKey.getChainKey(counter, skippedMessageKeys);
+
+    for (MessageKeys messageKeys : skippedMessageKeys) {
       sessionRecord.setMessageKeys(theirEphemeral, messageKeys);
-      chainKey = chainKey.getNextChainKey();
     }
 
     sessionRecord.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
@@ -183,7 +184,7 @@ public class SessionCipherV2 extends SessionCipher {
 
   private Cipher getCipher(int mode, SecretKeySpec key, int counter)  {
     try {
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Cipher cipher = CryptoPrimitives.getAesCtr();
 
       byte[] ivBytes = new byte[16];
       Conversions.intToByteArray(ivBytes, 0, counter);
@@ -192,10 +193,6 @@ public class SessionCipherV2 extends SessionCipher {
       cipher.init(mode, key, iv);
 
       return cipher;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchPaddingException e) {
-      throw new AssertionError(e);
     } catch (java.security.InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (InvalidAlgorithmParameterException e) {
@@ -17,13 +17,12 @@
 
 package org.whispersystems.textsecure.crypto.kdf;
 
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
+import org.whispersystems.textsecure.crypto.CryptoPrimitives;
+
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.List;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class HKDF {
@@ -63,11 +62,9 @@ public class HKDF {
 
   private byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getHmacSha256();
       mac.init(new SecretKeySpec(salt, "HmacSHA256"));
       return mac.doFinal(inputKeyMaterial);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
@@ -75,34 +72,31 @@ public class HKDF {
 
   private byte[] expand(byte[] prk, byte[] info, int outputSize) {
     try {
-      int                   iterations = (int)Math.ceil((double)outputSize/(double)HASH_OUTPUT_SIZE);
-      byte[]                mixin      = new byte[0];
-      ByteArrayOutputStream results    = new ByteArrayOutputStream();
+      int    iterations = (outputSize + HASH_OUTPUT_SIZE - 1) / HASH_OUTPUT_SIZE;
+      byte[] results    = new byte[iterations * HASH_OUTPUT_SIZE];
+      Mac    mac        = CryptoPrimitives.getHmacSha256();
+
+      mac.init(new SecretKeySpec(prk, "HmacSHA256"));
 
       for (int i=0;i<iterations;i++) {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        if (i > 0) {
+          mac.update(results, (i - 1) * HASH_OUTPUT_SIZE, HASH_OUTPUT_SIZE);
+        }
 
-        mac.update(mixin);
         if (info != null) {
           mac.update(info);
         }
-        mac.update((byte)i);
-
-        byte[] stepResult = mac.doFinal();
-        results.write(stepResult, 0, stepResult.length);
 
-        mixin = stepResult;
+        mac.update((byte)i);
+        mac.doFinal(results, i * HASH_OUTPUT_SIZE);
       }
 
-      return results.toByteArray();
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+      return results;
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
     }
   }
 
-
-
 }
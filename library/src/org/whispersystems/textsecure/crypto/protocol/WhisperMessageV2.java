@@ -5,6 +5,7 @@ import android.util.Log;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import org.whispersystems.textsecure.crypto.CryptoPrimitives;
 import org.whispersystems.textsecure.crypto.InvalidKeyException;
 import org.whispersystems.textsecure.crypto.InvalidMessageException;
 import org.whispersystems.textsecure.crypto.ecc.Curve;
@@ -14,7 +15,6 @@ import org.whispersystems.textsecure.util.Conversions;
 import org.whispersystems.textsecure.util.Hex;
 import org.whispersystems.textsecure.util.Util;
 
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.Arrays;
 
@@ -110,13 +110,11 @@ public class WhisperMessageV2 implements CiphertextMessage {
 
   private byte[] getMac(SecretKeySpec macKey, byte[] serialized) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getHmacSha256();
       mac.init(macKey);
 
       byte[] fullMac = mac.doFinal(serialized);
       return Util.trim(fullMac, MAC_LENGTH);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
     } catch (java.security.InvalidKeyException e) {
       throw new AssertionError(e);
     }
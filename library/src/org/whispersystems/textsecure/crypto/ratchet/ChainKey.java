@@ -1,12 +1,14 @@
 package org.whispersystems.textsecure.crypto.ratchet;
 
+import org.whispersystems.textsecure.crypto.CryptoPrimitives;
 import org.whispersystems.textsecure.crypto.kdf.DerivedSecrets;
 import org.whispersystems.textsecure.crypto.kdf.HKDF;
 
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class ChainKey {
@@ -31,28 +33,70 @@ public class ChainKey {
   }
 
   public ChainKey getNextChainKey() {
-    byte[] nextKey = getBaseMaterial(CHAIN_KEY_SEED);
+    byte[] nextKey = getBaseMaterial(key, CHAIN_KEY_SEED);
     return new ChainKey(nextKey, index + 1);
   }
 
+  /**
+   * Advances the chain to the given index in place, without creating a
+   * ChainKey for each step along the way.
+   *
+   * @param targetIndex The index of the returned chain key.
+   * @param skippedMessageKeys If not null, receives the message keys for
+   *                           every index that was skipped over.
+   * @return The chain key at targetIndex.
+   */
+  public ChainKey getChainKey(int targetIndex, List<MessageKeys> skippedMessageKeys) {
+    if (targetIndex <= index) {
+      return this;
+    }
+
+    byte[] chainKey = key.clone();
+
+    for (int i=index;i<targetIndex;i++) {
+      if (skippedMessageKeys != null) {
+        skippedMessageKeys.add(getMessageKeys(chainKey, i));
+      }
+
+      deriveInPlace(chainKey, CHAIN_KEY_SEED);
+    }
+
+    return new ChainKey(chainKey, targetIndex);
+  }
+
   public MessageKeys getMessageKeys() {
+    return getMessageKeys(key, index);
+  }
+
+  private static MessageKeys getMessageKeys(byte[] chainKey, int index) {
     HKDF           kdf              = new HKDF();
-    byte[]         inputKeyMaterial = getBaseMaterial(MESSAGE_KEY_SEED);
+    byte[]         inputKeyMaterial = getBaseMaterial(chainKey, MESSAGE_KEY_SEED);
     DerivedSecrets keyMaterial      = kdf.deriveSecrets(inputKeyMaterial, "WhisperMessageKeys".getBytes());
 
     return new MessageKeys(keyMaterial.getCipherKey(), keyMaterial.getMacKey(), index);
   }
 
-  private byte[] getBaseMaterial(byte[] seed) {
+  private static byte[] getBaseMaterial(byte[] chainKey, byte[] seed) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      Mac mac = CryptoPrimitives.getHmacSha256();
+      mac.init(new SecretKeySpec(chainKey, "HmacSHA256"));
 
       return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException e) {
+    } catch (InvalidKeyException e) {
       throw new AssertionError(e);
+    }
+  }
+
+  private static void deriveInPlace(byte[] chainKey, byte[] seed) {
+    try {
+      Mac mac = CryptoPrimitives.getHmacSha256();
+      mac.init(new SecretKeySpec(chainKey, "HmacSHA256"));
+      mac.update(seed);
+      mac.doFinal(chainKey, 0);
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
     }
   }
 }
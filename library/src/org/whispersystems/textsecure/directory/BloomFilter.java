@@ -17,6 +17,8 @@
 
 package org.whispersystems.textsecure.directory;
 
+import android.util.Log;
+
 import org.whispersystems.textsecure.util.Conversions;
 
 import javax.crypto.Mac;
@@ -28,27 +30,59 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A simple bloom filter implementation that backs the RedPhone directory.
  *
+ * The backing file is mapped once at construction, and each thread keeps its
+ * own set of MACs that are pre-keyed for every hash round, so a single
+ * instance can be shared and queried concurrently.
+ *
  * @author Moxie Marlinspike
  *
  */
 
 public class BloomFilter {
 
+  private static final int ENTITY_INDEX_BITS       = 29;
+  private static final int MAX_BATCH_SIZE          = 1 << ENTITY_INDEX_BITS;
+  private static final int MIN_ENTITIES_PER_WORKER = 256;
+
+  private static final int             WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService workers      = Executors.newFixedThreadPool(WORKER_COUNT);
+
   private final MappedByteBuffer buffer;
   private final long length;
   private final int hashCount;
 
+  private final ThreadLocal<Mac[]> macs = new ThreadLocal<Mac[]>() {
+    @Override
+    protected Mac[] initialValue() {
+      return initializeMacs(hashCount);
+    }
+  };
+
   public BloomFilter(File bloomFilter, int hashCount)
       throws IOException
   {
-    this.length    = bloomFilter.length();
-    this.buffer    = new FileInputStream(bloomFilter).getChannel()
-                                                     .map(FileChannel.MapMode.READ_ONLY, 0, length);
-    this.hashCount = hashCount;
+    FileInputStream fin = new FileInputStream(bloomFilter);
+
+    try {
+      this.length    = bloomFilter.length();
+      this.buffer    = fin.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      this.hashCount = hashCount;
+    } finally {
+      fin.close();
+    }
   }
 
   public int getHashCount() {
@@ -63,19 +97,149 @@ public class BloomFilter {
   }
 
   public boolean contains(String entity) {
+    Mac[]  roundMacs   = macs.get();
+    byte[] entityBytes = entity.getBytes();
+
+    for (int i=0;i<this.hashCount;i++) {
+      byte[] hashValue = roundMacs[i].doFinal(entityBytes);
+      long bitIndex    = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % (this.length * 8);
+
+      if (!isBitSet(bitIndex))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Checks a batch of entities against the filter.
+   *
+   * All bit probes for the batch are hashed up front (split across cores for
+   * large batches), then sorted by their position in the filter so that the
+   * mapped file is read in a single sequential pass.
+   *
+   * @param entities The entities to look up.
+   * @return A BitSet where bit <i>n</i> is set if entity <i>n</i> might be in the filter.
+   */
+  public BitSet contains(List<String> entities) {
+    int    count  = entities.size();
+    BitSet result = new BitSet(count);
+
+    if (count == 0) {
+      return result;
+    }
+
+    if (count > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("Batch too large: " + count);
+    }
+
+    long[] probes     = getProbes(entities);
+    BitSet missing    = new BitSet(count);
+    int    entityMask = MAX_BATCH_SIZE - 1;
+
+    Arrays.sort(probes);
+
+    long    lastBitIndex = -1;
+    boolean lastIsSet    = false;
+
+    for (long probe : probes) {
+      long bitIndex    = probe >>> ENTITY_INDEX_BITS;
+      int  entityIndex = (int)(probe & entityMask);
+
+      if (bitIndex != lastBitIndex) {
+        lastBitIndex = bitIndex;
+        lastIsSet    = isBitSet(bitIndex);
+      }
+
+      if (!lastIsSet) {
+        missing.set(entityIndex);
+      }
+    }
+
+    result.set(0, count);
+    result.andNot(missing);
+
+    return result;
+  }
+
+  private long[] getProbes(List<String> entities) {
+    int    count   = entities.size();
+    long[] probes  = new long[count * hashCount];
+    int    workers = Math.min(WORKER_COUNT, count / MIN_ENTITIES_PER_WORKER);
+
+    if (workers <= 1) {
+      hashProbes(entities, 0, count, probes);
+      return probes;
+    }
+
+    List<Future<?>> futures   = new ArrayList<Future<?>>(workers);
+    int             sliceSize = (count + workers - 1) / workers;
+
+    for (int start=0;start<count;start+=sliceSize) {
+      final int          sliceStart = start;
+      final int          sliceEnd   = Math.min(count, start + sliceSize);
+      final List<String> source     = entities;
+      final long[]       target     = probes;
+
+      futures.add(BloomFilter.workers.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          hashProbes(source, sliceStart, sliceEnd, target);
+          return null;
+        }
+      }));
+    }
+
     try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Log.w("BloomFilter", e);
+      Thread.currentThread().interrupt();
+
+      // The workers write the same values they'd be replaced with, so it's
+      // safe to finish the job here whatever state they were left in.
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+
+      hashProbes(entities, 0, count, probes);
+    } catch (ExecutionException e) {
+      if      (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else if (e.getCause() instanceof Error)            throw (Error)e.getCause();
+      else                                               throw new AssertionError(e);
+    }
+
+    return probes;
+  }
+
+  private void hashProbes(List<String> entities, int start, int end, long[] probes) {
+    Mac[] roundMacs = macs.get();
+    long  bitCount  = this.length * 8;
+
+    for (int entityIndex=start;entityIndex<end;entityIndex++) {
+      byte[] entityBytes = entities.get(entityIndex).getBytes();
+
       for (int i=0;i<this.hashCount;i++) {
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(new SecretKeySpec((i+"").getBytes(), "HmacSHA1"));
+        byte[] hashValue = roundMacs[i].doFinal(entityBytes);
+        long   bitIndex  = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % bitCount;
+
+        probes[entityIndex * hashCount + i] = (bitIndex << ENTITY_INDEX_BITS) | entityIndex;
+      }
+    }
+  }
 
-        byte[] hashValue = mac.doFinal(entity.getBytes());
-        long bitIndex    = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % (this.length * 8);
+  private static Mac[] initializeMacs(int hashCount) {
+    try {
+      Mac[] roundMacs = new Mac[hashCount];
 
-        if (!isBitSet(bitIndex))
-          return false;
+      for (int i=0;i<hashCount;i++) {
+        roundMacs[i] = Mac.getInstance("HmacSHA1");
+        roundMacs[i].init(new SecretKeySpec((i+"").getBytes(), "HmacSHA1"));
       }
 
-      return true;
+      return roundMacs;
     } catch (NoSuchAlgorithmException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
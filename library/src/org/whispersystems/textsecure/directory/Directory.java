@@ -6,16 +6,21 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.util.Log;
 
 import org.whispersystems.textsecure.push.ContactTokenDetails;
 import org.whispersystems.textsecure.util.InvalidNumberException;
 import org.whispersystems.textsecure.util.PhoneNumberFormatter;
+import org.whispersystems.textsecure.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -40,6 +45,8 @@ public class Directory {
                               SUPPORTS_SMS + " INTEGER, " +
                               TIMESTAMP    + " INTEGER);";
 
+  private static final int MAX_QUERY_ARGUMENTS = 500;
+
   private static final Object instanceLock = new Object();
   private static volatile Directory instance;
 
@@ -58,27 +65,17 @@ public class Directory {
   private final DatabaseHelper databaseHelper;
   private final Context        context;
 
+  private DirectoryIndex index;
+
   private Directory(Context context) {
     this.context = context;
     this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
   }
 
   public boolean isSmsFallbackSupported(String e164number) {
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
-
-    try {
-      cursor = db.query(TABLE_NAME, new String[] {SUPPORTS_SMS}, NUMBER + " = ?",
-                        new String[]{e164number}, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        return false;
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    synchronized (this) {
+      int value = getIndex().get(e164number);
+      return value != DirectoryIndex.ABSENT && DirectoryIndex.isSupportsSms(value);
     }
   }
 
@@ -87,41 +84,26 @@ public class Directory {
       return false;
     }
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
+    int value;
 
-    try {
-      cursor = db.query(TABLE_NAME,
-          new String[]{REGISTERED}, NUMBER + " = ?",
-          new String[] {e164number}, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
-      }
+    synchronized (this) {
+      value = getIndex().get(e164number);
+    }
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    if (value == DirectoryIndex.ABSENT) {
+      throw new NotInDirectoryException();
     }
+
+    return DirectoryIndex.isRegistered(value);
   }
 
   public String getRelay(String e164number) {
-    SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor         cursor   = null;
-
-    try {
-      cursor = database.query(TABLE_NAME, null, NUMBER + " = ?", new String[]{e164number}, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getString(cursor.getColumnIndexOrThrow(RELAY));
-      }
+    synchronized (this) {
+      DirectoryIndex index = getIndex();
+      int            value = index.get(e164number);
 
-      return null;
-    } finally {
-      if (cursor != null)
-        cursor.close();
+      if (value == DirectoryIndex.ABSENT) return null;
+      else                                return index.getRelay(value);
     }
   }
 
@@ -133,38 +115,134 @@ public class Directory {
     values.put(REGISTERED, active ? 1 : 0);
     values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
     values.put(TIMESTAMP, System.currentTimeMillis());
-    db.replace(TABLE_NAME, null, values);
+
+    synchronized (this) {
+      db.replace(TABLE_NAME, null, values);
+
+      if (index != null) {
+        index.put(token.getNumber(), active, token.isSupportsSms(), token.getRelay());
+      }
+    }
   }
 
+  /**
+   * Records the result of a directory query. Rows whose state hasn't changed
+   * only have their timestamp refreshed, in batches, rather than being rewritten.
+   */
   public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
     long timestamp    = System.currentTimeMillis();
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.beginTransaction();
 
-    try {
+    synchronized (this) {
+      DirectoryIndex index     = getIndex();
+      List<String>   unchanged = new LinkedList<String>();
+
+      db.beginTransaction();
+
+      try {
+        for (ContactTokenDetails token : activeTokens) {
+          int value = index.get(token.getNumber());
+
+          if (value != DirectoryIndex.ABSENT                               &&
+              DirectoryIndex.isRegistered(value)                           &&
+              DirectoryIndex.isSupportsSms(value) == token.isSupportsSms() &&
+              Util.isEquals(index.getRelay(value), token.getRelay()))
+          {
+            unchanged.add(token.getNumber());
+            continue;
+          }
+
+          Log.w("Directory", "Adding active token: " + token);
+          ContentValues values = new ContentValues();
+          values.put(NUMBER, token.getNumber());
+          values.put(REGISTERED, 1);
+          values.put(TIMESTAMP, timestamp);
+          values.put(RELAY, token.getRelay());
+          values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
+          db.replace(TABLE_NAME, null, values);
+        }
+
+        for (String token : inactiveTokens) {
+          int value = index.get(token);
+
+          if (value != DirectoryIndex.ABSENT && !DirectoryIndex.isRegistered(value)) {
+            unchanged.add(token);
+            continue;
+          }
+
+          ContentValues values = new ContentValues();
+          values.put(NUMBER, token);
+          values.put(REGISTERED, 0);
+          values.put(TIMESTAMP, timestamp);
+          db.replace(TABLE_NAME, null, values);
+        }
+
+        updateTimestamps(db, unchanged, timestamp);
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+
       for (ContactTokenDetails token : activeTokens) {
-        Log.w("Directory", "Adding active token: " + token);
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token.getNumber());
-        values.put(REGISTERED, 1);
-        values.put(TIMESTAMP, timestamp);
-        values.put(RELAY, token.getRelay());
-        values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
-        db.replace(TABLE_NAME, null, values);
+        index.put(token.getNumber(), true, token.isSupportsSms(), token.getRelay());
       }
 
       for (String token : inactiveTokens) {
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token);
-        values.put(REGISTERED, 0);
-        values.put(TIMESTAMP, timestamp);
-        db.replace(TABLE_NAME, null, values);
+        int value = index.get(token);
+
+        if (value == DirectoryIndex.ABSENT || DirectoryIndex.isRegistered(value)) {
+          index.put(token, false, false, null);
+        }
       }
+    }
+  }
+
+  private void updateTimestamps(SQLiteDatabase db, List<String> numbers, long timestamp) {
+    Iterator<String> iterator = numbers.iterator();
+
+    while (iterator.hasNext()) {
+      List<String>  batch     = new ArrayList<String>(MAX_QUERY_ARGUMENTS);
+      StringBuilder selection = new StringBuilder(NUMBER + " IN (");
+
+      while (iterator.hasNext() && batch.size() < MAX_QUERY_ARGUMENTS) {
+        selection.append(batch.isEmpty() ? "?" : ", ?");
+        batch.add(iterator.next());
+      }
+
+      selection.append(")");
+
+      ContentValues values = new ContentValues();
+      values.put(TIMESTAMP, timestamp);
 
-      db.setTransactionSuccessful();
+      db.update(TABLE_NAME, values, selection.toString(), batch.toArray(new String[batch.size()]));
+    }
+  }
+
+  private DirectoryIndex getIndex() {
+    if (index != null) {
+      return index;
+    }
+
+    DirectoryIndex loaded = new DirectoryIndex();
+    Cursor         cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME,
+          new String[] {NUMBER, REGISTERED, SUPPORTS_SMS, RELAY},
+          null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        loaded.put(cursor.getString(0), cursor.getInt(1) == 1,
+                   cursor.getInt(2) == 1, cursor.getString(3));
+      }
     } finally {
-      db.endTransaction();
+      if (cursor != null)
+        cursor.close();
     }
+
+    index = loaded;
+    return index;
   }
 
   public Set<String> getPushEligibleContactNumbers(String localNumber) {
@@ -207,6 +285,77 @@ public class Directory {
     }
   }
 
+  /**
+   * Returns the numbers that need to be checked against the server: contact
+   * numbers that have changed since the last refresh and aren't already fresh
+   * in the directory, plus any directory entries that have gone stale.
+   *
+   * Contact change tracking needs API 18, so older devices read every contact
+   * number but still only return those that aren't fresh in the directory.
+   *
+   * @param localNumber The local number, used to format contact numbers.
+   * @param contactsChangedSince Time of the last successful refresh, or 0 for all contacts.
+   * @param staleBefore Directory entries older than this are returned again.
+   */
+  public Set<String> getPushEligibleContactNumbers(String localNumber, long contactsChangedSince,
+                                                   long staleBefore)
+  {
+    final Set<String> results = new HashSet<String>();
+          Cursor      cursor  = null;
+
+    String   selection     = null;
+    String[] selectionArgs = null;
+
+    if (contactsChangedSince > 0 && Build.VERSION.SDK_INT >= 18) {
+      selection     = ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?";
+      selectionArgs = new String[] {String.valueOf(contactsChangedSince)};
+    }
+
+    try {
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, new String[] {Phone.NUMBER},
+                                                  selection, selectionArgs, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        final String rawNumber = cursor.getString(0);
+        if (rawNumber != null) {
+          try {
+            results.add(PhoneNumberFormatter.formatNumber(rawNumber, localNumber));
+          } catch (InvalidNumberException e) {
+            Log.w("Directory", "Invalid number: " + rawNumber);
+          }
+        }
+      }
+
+      if (cursor != null)
+        cursor.close();
+
+      final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
+      final String[]       staleArgs  = new String[] {String.valueOf(staleBefore)};
+
+      cursor = readableDb.query(TABLE_NAME, new String[] {NUMBER}, TIMESTAMP + " >= ?",
+                                staleArgs, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.remove(cursor.getString(0));
+      }
+
+      if (cursor != null)
+        cursor.close();
+
+      cursor = readableDb.query(TABLE_NAME, new String[] {NUMBER}, TIMESTAMP + " < ?",
+                                staleArgs, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public List<String> getActiveNumbers() {
     final List<String> results = new ArrayList<String>();
     Cursor cursor = null;
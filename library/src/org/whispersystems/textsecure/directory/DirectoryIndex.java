@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.directory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory mirror of the directory table, used to answer routing
+ * questions without a database round-trip.
+ *
+ * E.164 numbers are packed into longs and mapped to an int that holds the
+ * registered and SMS flags along with an index into a table of relay names.
+ * Anything that doesn't look like an E.164 number falls back to a regular map.
+ *
+ * Callers are responsible for synchronization.
+ */
+class DirectoryIndex {
+
+  static final int ABSENT = -1;
+
+  private static final int FLAG_REGISTERED   = 0x01;
+  private static final int FLAG_SUPPORTS_SMS = 0x02;
+  private static final int RELAY_SHIFT       = 2;
+
+  private static final long EMPTY_KEY        = 0;
+  private static final int  MAX_E164_DIGITS  = 18;
+  private static final int  INITIAL_CAPACITY = 64;
+
+  private final List<String>         relays     = new ArrayList<String>();
+  private final Map<String, Integer> relayIds   = new HashMap<String, Integer>();
+  private final Map<String, Integer> unpackable = new HashMap<String, Integer>();
+
+  private long[] keys   = new long[INITIAL_CAPACITY];
+  private int[]  values = new int[INITIAL_CAPACITY];
+  private int    size;
+
+  public DirectoryIndex() {
+    relays.add(null);
+  }
+
+  public void put(String number, boolean registered, boolean supportsSms, String relay) {
+    int value = (registered  ? FLAG_REGISTERED   : 0) |
+                (supportsSms ? FLAG_SUPPORTS_SMS : 0) |
+                (getRelayId(relay) << RELAY_SHIFT);
+
+    long key = pack(number);
+
+    if (key == EMPTY_KEY) unpackable.put(number, value);
+    else                  putPacked(key, value);
+  }
+
+  public int get(String number) {
+    long key = pack(number);
+
+    if (key == EMPTY_KEY) {
+      Integer value = unpackable.get(number);
+      return value == null ? ABSENT : value;
+    }
+
+    int slot = findSlot(keys, key);
+
+    if (keys[slot] == EMPTY_KEY) return ABSENT;
+    else                         return values[slot];
+  }
+
+  public static boolean isRegistered(int value) {
+    return (value & FLAG_REGISTERED) != 0;
+  }
+
+  public static boolean isSupportsSms(int value) {
+    return (value & FLAG_SUPPORTS_SMS) != 0;
+  }
+
+  public String getRelay(int value) {
+    return relays.get(value >>> RELAY_SHIFT);
+  }
+
+  private int getRelayId(String relay) {
+    if (relay == null) return 0;
+
+    Integer relayId = relayIds.get(relay);
+
+    if (relayId == null) {
+      relayId = relays.size();
+      relays.add(relay);
+      relayIds.put(relay, relayId);
+    }
+
+    return relayId;
+  }
+
+  private void putPacked(long key, int value) {
+    int slot = findSlot(keys, key);
+
+    if (keys[slot] == EMPTY_KEY) {
+      keys[slot] = key;
+      size++;
+    }
+
+    values[slot] = value;
+
+    if (size * 2 > keys.length) {
+      resize();
+    }
+  }
+
+  private void resize() {
+    long[] oldKeys   = keys;
+    int[]  oldValues = values;
+
+    keys   = new long[oldKeys.length * 2];
+    values = new int[oldKeys.length * 2];
+
+    for (int i=0;i<oldKeys.length;i++) {
+      if (oldKeys[i] != EMPTY_KEY) {
+        int slot = findSlot(keys, oldKeys[i]);
+        keys[slot]   = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int findSlot(long[] keys, long key) {
+    int mask = keys.length - 1;
+    int slot = (int)((key ^ (key >>> 32)) * 0x9E3779B9) & mask;
+
+    while (keys[slot] != EMPTY_KEY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Packs "+" followed by up to 18 digits (without a leading zero) into a long.
+   *
+   * @return The packed number, or EMPTY_KEY if the number can't be packed.
+   */
+  private static long pack(String number) {
+    if (number == null || number.length() < 2 || number.length() > MAX_E164_DIGITS + 1 ||
+        number.charAt(0) != '+' || number.charAt(1) == '0')
+    {
+      return EMPTY_KEY;
+    }
+
+    long packed = 0;
+
+    for (int i=1;i<number.length();i++) {
+      char digit = number.charAt(i);
+
+      if (digit < '0' || digit > '9') {
+        return EMPTY_KEY;
+      }
+
+      packed = packed * 10 + (digit - '0');
+    }
+
+    return packed;
+  }
+
+}
@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.BitSet;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
@@ -61,6 +62,8 @@ public class NumberFilter {
   private int hashCount;
   private Context context;
 
+  private volatile BloomFilter filter;
+
   private NumberFilter(Context context, File bloomFilter, long capacity,
                        int hashCount, String version)
   {
@@ -71,35 +74,54 @@ public class NumberFilter {
     this.version     = version;
   }
 
-  public synchronized boolean containsNumber(String number) {
-    try {
-      if      (bloomFilter == null)                    return false;
-      else if (number == null || number.length() == 0) return false;
+  public boolean containsNumber(String number) {
+    if (number == null || number.length() == 0) return false;
 
-      return new BloomFilter(bloomFilter, hashCount).contains(number);
-    } catch (IOException ioe) {
-      Log.w("NumberFilter", ioe);
-      return false;
-    }
+    BloomFilter filter = getFilter();
+
+    if (filter == null) return false;
+    else                return filter.contains(number);
   }
 
-  public synchronized boolean containsNumbers(List<String> numbers) {
-    try {
-      if  (bloomFilter == null)                    return false;
-      if  (numbers == null || numbers.size() == 0) return false;
+  public boolean containsNumbers(List<String> numbers) {
+    if (numbers == null || numbers.size() == 0) return false;
+
+    BloomFilter filter = getFilter();
+
+    if (filter == null) return false;
+    else                return filter.contains(numbers).cardinality() == numbers.size();
+  }
+
+  /**
+   * @param numbers The numbers to look up.
+   * @return A BitSet where bit <i>n</i> is set if number <i>n</i> might be in the directory.
+   */
+  public BitSet getContainedNumbers(List<String> numbers) {
+    if (numbers == null || numbers.size() == 0) return new BitSet();
+
+    BloomFilter filter = getFilter();
+
+    if (filter == null) return new BitSet();
+    else                return filter.contains(numbers);
+  }
 
-      BloomFilter filter = new BloomFilter(bloomFilter, hashCount);
+  private BloomFilter getFilter() {
+    BloomFilter filter = this.filter;
 
-      for (String number : numbers) {
-        if (!filter.contains(number)) {
-          return false;
+    if (filter != null) {
+      return filter;
+    }
+
+    synchronized (this) {
+      if (this.filter == null && bloomFilter != null) {
+        try {
+          this.filter = new BloomFilter(bloomFilter, hashCount);
+        } catch (IOException ioe) {
+          Log.w("NumberFilter", ioe);
         }
       }
 
-      return true;
-    } catch (IOException ioe) {
-      Log.w("NumberFilter", ioe);
-      return false;
+      return this.filter;
     }
   }
 
@@ -135,6 +157,7 @@ public class NumberFilter {
     this.capacity    = capacity;
     this.hashCount   = hashCount;
     this.version     = version;
+    this.filter      = null;
 
     serializeToFile(context);
   }
@@ -5,17 +5,24 @@ import android.util.Log;
 
 import com.google.thoughtcrimegson.Gson;
 import com.google.thoughtcrimegson.JsonParseException;
+import com.google.thoughtcrimegson.stream.JsonReader;
 
 import org.apache.http.conn.ssl.StrictHostnameVerifier;
+import org.whispersystems.textsecure.crypto.AttachmentCipherOutputStream;
 import org.whispersystems.textsecure.crypto.IdentityKey;
 import org.whispersystems.textsecure.storage.PreKeyRecord;
 import org.whispersystems.textsecure.util.Base64;
 import org.whispersystems.textsecure.util.Util;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -26,9 +33,19 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -48,8 +65,13 @@ public class PushServiceSocket {
   private static final String MESSAGE_PATH              = "/v1/messages/%s";
   private static final String ATTACHMENT_PATH           = "/v1/attachments/%s";
 
+  private static final byte[] TOKEN_LIST_PREFIX = "{\"contacts\":[".getBytes();
+  private static final byte[] TOKEN_LIST_SUFFIX = "]}".getBytes();
+
   private static final boolean ENFORCE_SSL = true;
 
+  private static final ExecutorService directoryExecutor = Executors.newCachedThreadPool();
+
   private final Context context;
   private final String serviceUrl;
   private final String localNumber;
@@ -180,12 +202,37 @@ public class PushServiceSocket {
 
     Log.w("PushServiceSocket", "Got attachment content location: " + attachmentKey.getLocation());
 
-    uploadExternalFile("PUT", attachmentKey.getLocation(), attachment.getData());
+    uploadAttachment("PUT", attachmentKey.getLocation(), attachment.getData(),
+                     attachment.getDataSize(), attachment.getKey());
 
     return attachmentKey.getId();
   }
 
   public File retrieveAttachment(String relay, long attachmentId) throws IOException {
+    AttachmentDescriptor descriptor = getAttachmentDescriptor(relay, attachmentId);
+
+    File attachment = File.createTempFile("attachment", ".tmp", context.getFilesDir());
+    attachment.deleteOnExit();
+
+    downloadExternalFile(descriptor.getLocation(), attachment);
+
+    return attachment;
+  }
+
+  /**
+   * Opens the attachment body for streaming, starting <code>offset</code>
+   * bytes in. Closing the returned stream closes the underlying connection.
+   */
+  public InputStream retrieveAttachmentStream(String relay, long attachmentId, long offset)
+      throws IOException
+  {
+    AttachmentDescriptor descriptor = getAttachmentDescriptor(relay, attachmentId);
+    return openExternalFile(descriptor.getLocation(), offset);
+  }
+
+  private AttachmentDescriptor getAttachmentDescriptor(String relay, long attachmentId)
+      throws IOException
+  {
     String path = String.format(ATTACHMENT_PATH, String.valueOf(attachmentId));
 
     if (!Util.isEmpty(relay)) {
@@ -197,12 +244,7 @@ public class PushServiceSocket {
 
     Log.w("PushServiceSocket", "Attachment: " + attachmentId + " is at: " + descriptor.getLocation());
 
-    File attachment = File.createTempFile("attachment", ".tmp", context.getFilesDir());
-    attachment.deleteOnExit();
-
-    downloadExternalFile(descriptor.getLocation(), attachment);
-
-    return attachment;
+    return descriptor;
   }
 
   public List<ContactTokenDetails> retrieveDirectory(Set<String> contactTokens) {
@@ -218,6 +260,158 @@ public class PushServiceSocket {
     }
   }
 
+  /**
+   * Queries the directory in fixed-size pages, with up to <code>concurrency</code>
+   * pages in flight at once. Each page is streamed to and from the server, and
+   * handed to the listener as soon as it completes. An unchecked exception
+   * from a page or the listener stops any pages not yet started, and is
+   * rethrown here.
+   *
+   * @return true if every page succeeded, false if any failed.
+   */
+  public boolean retrieveDirectory(Collection<String> contactTokens, int pageSize, int concurrency,
+                                   final DirectoryPageListener listener)
+  {
+    final Queue<List<String>> pages    = new ConcurrentLinkedQueue<List<String>>();
+    List<Future<Boolean>>     workers  = new LinkedList<Future<Boolean>>();
+    Iterator<String>          iterator = contactTokens.iterator();
+
+    while (iterator.hasNext()) {
+      List<String> page = new ArrayList<String>(pageSize);
+
+      while (iterator.hasNext() && page.size() < pageSize) {
+        page.add(iterator.next());
+      }
+
+      pages.add(page);
+    }
+
+    for (int i=0;i<Math.min(concurrency, pages.size());i++) {
+      workers.add(directoryExecutor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          boolean      success = true;
+          List<String> page;
+
+          while ((page = pages.poll()) != null) {
+            try {
+              listener.onPage(page, retrieveDirectoryPage(page));
+            } catch (IOException ioe) {
+              Log.w("PushServiceSocket", ioe);
+              success = false;
+            }
+          }
+
+          return success;
+        }
+      }));
+    }
+
+    try {
+      boolean success = true;
+
+      for (Future<Boolean> worker : workers) {
+        success &= worker.get();
+      }
+
+      return success;
+    } catch (InterruptedException e) {
+      Log.w("PushServiceSocket", e);
+      Thread.currentThread().interrupt();
+      pages.clear();
+      return false;
+    } catch (ExecutionException e) {
+      pages.clear();
+
+      if      (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else if (e.getCause() instanceof Error)            throw (Error)e.getCause();
+      else                                               throw new AssertionError(e);
+    }
+  }
+
+  private List<ContactTokenDetails> retrieveDirectoryPage(List<String> contactTokens)
+      throws IOException
+  {
+    HttpURLConnection connection = getConnection(DIRECTORY_TOKENS_PATH, "PUT");
+
+    try {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(getTokenListLength(contactTokens));
+      connection.connect();
+
+      OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+      writeTokenList(out, contactTokens);
+      out.close();
+
+      validateResponse(connection);
+
+      List<ContactTokenDetails> activeTokens = new LinkedList<ContactTokenDetails>();
+      JsonReader                reader       = new JsonReader(new InputStreamReader(connection.getInputStream()));
+      Gson                      gson         = new Gson();
+
+      try {
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+          if (!"contacts".equals(reader.nextName())) {
+            reader.skipValue();
+            continue;
+          }
+
+          reader.beginArray();
+
+          while (reader.hasNext()) {
+            activeTokens.add((ContactTokenDetails)gson.fromJson(reader, ContactTokenDetails.class));
+          }
+
+          reader.endArray();
+        }
+
+        reader.endObject();
+      } catch (JsonParseException e) {
+        throw new IOException(e);
+      } catch (IllegalStateException e) {
+        throw new IOException(e);
+      } finally {
+        reader.close();
+      }
+
+      return activeTokens;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private int getTokenListLength(List<String> contactTokens) {
+    int length = TOKEN_LIST_PREFIX.length + TOKEN_LIST_SUFFIX.length;
+
+    for (String token : contactTokens) {
+      length += token.length() + 3;
+    }
+
+    return contactTokens.isEmpty() ? length : length - 1;
+  }
+
+  /**
+   * Directory tokens are base64, so they can be written as JSON strings
+   * without escaping, which also lets us know the body length up front.
+   */
+  private void writeTokenList(OutputStream out, List<String> contactTokens) throws IOException {
+    boolean first = true;
+
+    out.write(TOKEN_LIST_PREFIX);
+
+    for (String token : contactTokens) {
+      if (!first) out.write(',');
+      out.write('"');
+      out.write(token.getBytes());
+      out.write('"');
+      first = false;
+    }
+
+    out.write(TOKEN_LIST_SUFFIX);
+  }
+
   public ContactTokenDetails getContactTokenDetails(String contactToken) throws IOException {
     try {
       String response = makeRequest(String.format(DIRECTORY_VERIFY_PATH, contactToken), "GET", null);
@@ -230,19 +424,10 @@ public class PushServiceSocket {
   private void downloadExternalFile(String url, File localDestination)
       throws IOException
   {
-    URL               downloadUrl = new URL(url);
-    HttpURLConnection connection  = (HttpURLConnection) downloadUrl.openConnection();
-    connection.setRequestProperty("Content-Type", "application/octet-stream");
-    connection.setRequestMethod("GET");
-    connection.setDoInput(true);
+    InputStream input = openExternalFile(url, 0);
 
     try {
-      if (connection.getResponseCode() != 200) {
-        throw new IOException("Bad response: " + connection.getResponseCode());
-      }
-
       OutputStream output = new FileOutputStream(localDestination);
-      InputStream input   = connection.getInputStream();
       byte[] buffer       = new byte[4096];
       int read;
 
@@ -253,29 +438,142 @@ public class PushServiceSocket {
       output.close();
       Log.w("PushServiceSocket", "Downloaded: " + url + " to: " + localDestination.getAbsolutePath());
     } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Opens a download, resuming with a Range request when <code>offset</code>
+   * is non-zero. If the server ignores the range, or returns one starting
+   * earlier, the bytes before the offset are skipped here instead. A range
+   * starting past the offset fails like any other network error.
+   */
+  private InputStream openExternalFile(String url, long offset) throws IOException {
+    URL                     downloadUrl = new URL(url);
+    final HttpURLConnection connection  = (HttpURLConnection) downloadUrl.openConnection();
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    connection.setRequestMethod("GET");
+    connection.setDoInput(true);
+
+    if (offset > 0) {
+      connection.setRequestProperty("Range", "bytes=" + offset + "-");
+    }
+
+    try {
+      int responseCode = connection.getResponseCode();
+
+      if (offset > 0 && responseCode == 416) {
+        Log.w("PushServiceSocket", "Nothing left to download past: " + offset);
+        connection.disconnect();
+        return new ByteArrayInputStream(new byte[0]);
+      }
+
+      if (responseCode != 200 && !(offset > 0 && responseCode == 206)) {
+        throw new IOException("Bad response: " + responseCode);
+      }
+
+      InputStream input = new FilterInputStream(connection.getInputStream()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            connection.disconnect();
+          }
+        }
+      };
+
+      if (responseCode == 200 && offset > 0) {
+        Log.w("PushServiceSocket", "Range ignored, skipping to: " + offset);
+        skipFully(input, offset);
+      } else if (responseCode == 206) {
+        long start = getContentRangeStart(connection);
+
+        if (start > offset) {
+          input.close();
+          throw new IOException("Range starts at: " + start + ", not: " + offset);
+        }
+
+        skipFully(input, offset - start);
+      }
+
+      return input;
+    } catch (IOException e) {
       connection.disconnect();
+      throw e;
     }
   }
 
-  private void uploadExternalFile(String method, String url, byte[] data)
+  /**
+   * @return The first byte position of a "bytes start-end/length" range.
+   */
+  private long getContentRangeStart(HttpURLConnection connection) throws IOException {
+    String contentRange = connection.getHeaderField("Content-Range");
+
+    if (contentRange != null && contentRange.startsWith("bytes ")) {
+      int end = contentRange.indexOf('-');
+
+      if (end != -1) {
+        try {
+          return Long.parseLong(contentRange.substring("bytes ".length(), end).trim());
+        } catch (NumberFormatException e) {
+          Log.w("PushServiceSocket", e);
+        }
+      }
+    }
+
+    throw new IOException("Bad Content-Range: " + contentRange);
+  }
+
+  private void skipFully(InputStream in, long count) throws IOException {
+    byte[] buffer = new byte[4096];
+
+    while (count > 0) {
+      int read = in.read(buffer, 0, (int)Math.min(buffer.length, count));
+
+      if (read == -1) {
+        throw new IOException("Stream ended before: " + count);
+      }
+
+      count -= read;
+    }
+  }
+
+  /**
+   * Encrypts the attachment as it's uploaded. The ciphertext length is known
+   * up front, so the body is streamed with a fixed length rather than buffered.
+   */
+  private void uploadAttachment(String method, String url, InputStream data, long dataSize, byte[] key)
     throws IOException
   {
     URL                uploadUrl  = new URL(url);
     HttpsURLConnection connection = (HttpsURLConnection) uploadUrl.openConnection();
     connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode((int) AttachmentCipherOutputStream.getCiphertextLength(dataSize));
     connection.setRequestMethod(method);
     connection.setRequestProperty("Content-Type", "application/octet-stream");
     connection.connect();
 
     try {
-      OutputStream out = connection.getOutputStream();
-      out.write(data);
+      OutputStream out    = new AttachmentCipherOutputStream(key, connection.getOutputStream());
+      byte[]       buffer = new byte[4096];
+      int          read;
+
+      while ((read = data.read(buffer)) != -1) {
+        if (Thread.interrupted()) {
+          throw new InterruptedIOException("Attachment upload cancelled!");
+        }
+
+        out.write(buffer, 0, read);
+      }
+
       out.close();
 
       if (connection.getResponseCode() != 200) {
         throw new IOException("Bad response: " + connection.getResponseCode() + " " + connection.getResponseMessage());
       }
     } finally {
+      data.close();
       connection.disconnect();
     }
   }
@@ -309,6 +607,12 @@ public class PushServiceSocket {
       out.close();
     }
 
+    validateResponse(connection);
+
+    return connection;
+  }
+
+  private void validateResponse(HttpURLConnection connection) throws IOException {
     if (connection.getResponseCode() == 413) {
       connection.disconnect();
       throw new RateLimitException("Rate limit exceeded: " + connection.getResponseCode());
@@ -341,8 +645,6 @@ public class PushServiceSocket {
     if (connection.getResponseCode() != 200 && connection.getResponseCode() != 204) {
       throw new IOException("Bad response: " + connection.getResponseCode() + " " + connection.getResponseMessage());
     }
-
-    return connection;
   }
 
   private HttpURLConnection getConnection(String urlFragment, String method) throws IOException {
@@ -431,6 +733,10 @@ public class PushServiceSocket {
     }
   }
 
+  public interface DirectoryPageListener {
+    public void onPage(List<String> contactTokens, List<ContactTokenDetails> activeTokens);
+  }
+
   public interface TrustStore {
     public InputStream getKeyStoreInputStream();
     public String getKeyStorePassword();
@@ -20,6 +20,19 @@ public class RecipientDevice {
     return deviceId;
   }
 
+  @Override
+  public boolean equals(Object other) {
+    if (other == null || !(other instanceof RecipientDevice)) return false;
+
+    RecipientDevice that = (RecipientDevice)other;
+    return this.recipientId == that.recipientId && this.deviceId == that.deviceId;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int)(recipientId ^ (recipientId >>> 32)) * 31 + deviceId;
+  }
+
   public CanonicalRecipient getRecipient() {
     return new CanonicalRecipient() {
       @Override
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, write-back cache of decoded V2 session records.
+ *
+ * Records are cached as immutable snapshots. A deferred save appends the
+ * record to a {@link SessionJournal}, marks the snapshot dirty and schedules
+ * a flush, so a burst of saves to the same session results in a single
+ * rewrite of its file, while each save is still on disk before it returns.
+ * Dirty snapshots are never evicted before they've been flushed, and are
+ * written out before the cache is cleared. Anything left in the journal by a
+ * process that died is restored before the first session is read.
+ *
+ * Disk writes happen under the per-session file lock rather than the cache's
+ * own monitor, so writing one session doesn't block lookups of another. The
+ * file lock is always taken before the cache monitor.
+ */
+class SessionCache {
+
+  private static final int  MAX_ENTRIES        = 64;
+  private static final long FLUSH_DELAY_MILLIS = 1000;
+
+  private static final SessionCache instance = new SessionCache();
+
+  public static SessionCache getInstance() {
+    return instance;
+  }
+
+  private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+  private final LinkedHashMap<RecipientDevice, Entry> entries =
+      new LinkedHashMap<RecipientDevice, Entry>(16, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<RecipientDevice, Entry> eldest) {
+      return size() > MAX_ENTRIES && eldest.getValue().record == null;
+    }
+  };
+
+  private final Object recoveryLock = new Object();
+  private final Object flushLock    = new Object();
+
+  private final Set<RecipientDevice> journaled = new HashSet<RecipientDevice>();
+  private final Set<RecipientDevice> flushing  = new HashSet<RecipientDevice>();
+
+  private volatile SessionJournal journal;
+  private          boolean        flushScheduled;
+
+  private SessionCache() {}
+
+  /**
+   * Restores any sessions whose deferred saves were journaled but never
+   * flushed. Must be called before a session file is read or deleted.
+   */
+  public void recover(Context context) {
+    if (journal != null) return;
+
+    synchronized (recoveryLock) {
+      if (journal != null) return;
+
+      SessionJournal recovered = new SessionJournal(context);
+
+      for (Map.Entry<RecipientDevice, byte[]> record : recovered.read().entrySet()) {
+        Log.w("SessionCache", "Restoring journaled session: " + record.getKey().getRecipientId());
+        SessionRecordV2.restore(context, record.getKey(), record.getValue());
+      }
+
+      recovered.delete();
+      journal = recovered;
+    }
+  }
+
+  public synchronized SessionRecordV2 get(RecipientDevice device) {
+    Entry entry = entries.get(device);
+    return entry == null ? null : entry.snapshot;
+  }
+
+  public synchronized void putClean(RecipientDevice device, SessionRecordV2 snapshot) {
+    if (!entries.containsKey(device)) {
+      entries.put(device, new Entry(snapshot, null));
+    }
+  }
+
+  public void putDirty(RecipientDevice device, SessionRecordV2 snapshot) {
+    byte[] record = snapshot.getEncryptedRecord();
+
+    synchronized (this) {
+      try {
+        if (journal != null) {
+          journal.appendRecord(device, record);
+          journaled.add(device);
+          entries.put(device, new Entry(snapshot, record));
+          scheduleFlush();
+          return;
+        }
+      } catch (IOException e) {
+        Log.w("SessionCache", e);
+      }
+    }
+
+    writeThrough(device, snapshot);
+  }
+
+  public void writeThrough(RecipientDevice device, SessionRecordV2 snapshot) {
+    synchronized (SessionRecordV2.getFileLock(device)) {
+      snapshot.write();
+
+      synchronized (this) {
+        entries.put(device, new Entry(snapshot, null));
+        appendMarker(device, false);
+      }
+    }
+  }
+
+  public synchronized void remove(RecipientDevice device) {
+    entries.remove(device);
+    appendMarker(device, true);
+  }
+
+  public void flush() {
+    synchronized (flushLock) {
+      List<Entry> dirtyEntries = new LinkedList<Entry>();
+      boolean     retained     = false;
+
+      synchronized (this) {
+        flushScheduled = false;
+
+        for (Entry entry : entries.values()) {
+          if (entry.record != null) {
+            dirtyEntries.add(entry);
+          }
+        }
+
+        if (journal != null) {
+          flushing.addAll(journaled);
+
+          // Entries that stay in the live journal still need their markers.
+          if (journal.beginFlush()) {
+            journaled.clear();
+          }
+        }
+      }
+
+      for (Entry entry : dirtyEntries) {
+        RecipientDevice device = entry.snapshot.getPeer();
+
+        synchronized (SessionRecordV2.getFileLock(device)) {
+          synchronized (this) {
+            if (entries.get(device) != entry || entry.record == null) {
+              continue;
+            }
+          }
+
+          try {
+            entry.snapshot.write(entry.record);
+          } catch (IllegalArgumentException e) {
+            Log.w("SessionCache", e);
+
+            // Its old journal is about to go, so carry it into the new one.
+            synchronized (this) {
+              try {
+                journal.appendRecord(device, entry.record);
+                journaled.add(device);
+              } catch (IOException ioe) {
+                Log.w("SessionCache", ioe);
+                retained = true;
+              }
+            }
+
+            continue;
+          }
+
+          synchronized (this) {
+            entry.record = null;
+          }
+        }
+      }
+
+      synchronized (this) {
+        if (journal != null && !retained) {
+          journal.endFlush();
+          flushing.clear();
+        }
+
+        trim();
+      }
+    }
+  }
+
+  public void clear() {
+    flush();
+
+    synchronized (this) {
+      Iterator<Entry> iterator = entries.values().iterator();
+
+      while (iterator.hasNext()) {
+        if (iterator.next().record == null) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  private void scheduleFlush() {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      flushExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Keeps a journaled state from being replayed over a session that has
+   * since been written directly or deleted.
+   */
+  private void appendMarker(RecipientDevice device, boolean deleted) {
+    if (journal == null || (!journaled.contains(device) && !flushing.contains(device))) {
+      return;
+    }
+
+    try {
+      if (deleted) journal.appendDeleted(device);
+      else         journal.appendClean(device);
+
+      journaled.add(device);
+    } catch (IOException e) {
+      Log.w("SessionCache", e);
+    }
+  }
+
+  private void trim() {
+    Iterator<Entry> iterator = entries.values().iterator();
+
+    while (entries.size() > MAX_ENTRIES && iterator.hasNext()) {
+      if (iterator.next().record == null) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * A cached snapshot, along with its encrypted record if it's dirty.
+   */
+  private static class Entry {
+    private final SessionRecordV2 snapshot;
+    private       byte[]          record;
+
+    public Entry(SessionRecordV2 snapshot, byte[] record) {
+      this.snapshot = snapshot;
+      this.record   = record;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.storage;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only log of the session records whose disk writes the
+ * {@link SessionCache} has deferred, so that they survive the process dying
+ * before they're flushed.
+ *
+ * Each entry holds a record exactly as it's stored on disk, so recovery
+ * doesn't need the master secret. Entries are replayed in order, so the last
+ * one for a session wins. A record written directly or deleted gets an entry
+ * of its own, so an older journaled state is never replayed over it.
+ *
+ * A flush moves the journal aside before it starts writing, adding it to
+ * the end of any left over from a flush that couldn't finish, and deletes
+ * it once everything in it is on disk. Anything deferred in the meantime
+ * goes to a fresh journal.
+ */
+class SessionJournal {
+
+  private static final int CLEAN   = 0;
+  private static final int DELETED = -1;
+
+  private final File journalFile;
+  private final File flushingFile;
+
+  private FileOutputStream out;
+
+  public SessionJournal(Context context) {
+    this.journalFile  = new File(context.getFilesDir(), "sessions-v2.journal");
+    this.flushingFile = new File(context.getFilesDir(), "sessions-v2.journal.flushing");
+  }
+
+  public void appendRecord(RecipientDevice device, byte[] record) throws IOException {
+    append(device, record.length, record);
+  }
+
+  /**
+   * Records that the session on disk is newer than anything journaled for it.
+   */
+  public void appendClean(RecipientDevice device) throws IOException {
+    append(device, CLEAN, null);
+  }
+
+  public void appendDeleted(RecipientDevice device) throws IOException {
+    append(device, DELETED, null);
+  }
+
+  /**
+   * Moves everything journaled so far aside, so that it can be discarded by
+   * {@link #endFlush()} once it's on disk.
+   *
+   * @return false if the journal couldn't be moved aside, in which case its
+   *         entries outlive the flush and must still be accounted for.
+   */
+  public boolean beginFlush() {
+    close();
+
+    if (!journalFile.exists()) {
+      return true;
+    }
+
+    if (!flushingFile.exists()) {
+      return journalFile.renameTo(flushingFile);
+    }
+
+    // The last flush couldn't finish, so its file is still needed. The
+    // journal goes after it, since its entries are newer.
+    File mergedFile = new File(flushingFile.getPath() + ".tmp");
+
+    try {
+      FileOutputStream merged = new FileOutputStream(mergedFile);
+
+      try {
+        copy(flushingFile, merged);
+        copy(journalFile, merged);
+      } finally {
+        merged.close();
+      }
+
+      if (!mergedFile.renameTo(flushingFile)) {
+        throw new IOException("Couldn't replace " + flushingFile);
+      }
+
+      journalFile.delete();
+      return true;
+    } catch (IOException e) {
+      Log.w("SessionJournal", e);
+      mergedFile.delete();
+      return false;
+    }
+  }
+
+  public void endFlush() {
+    flushingFile.delete();
+  }
+
+  /**
+   * @return The state each journaled session should be restored to, or null
+   *         for those that should be deleted. Sessions whose disk record is
+   *         already current are left out.
+   */
+  public Map<RecipientDevice, byte[]> read() {
+    Map<RecipientDevice, byte[]> records = new LinkedHashMap<RecipientDevice, byte[]>();
+
+    read(flushingFile, records);
+    read(journalFile, records);
+
+    return records;
+  }
+
+  public void delete() {
+    close();
+    flushingFile.delete();
+    journalFile.delete();
+  }
+
+  private void read(File file, Map<RecipientDevice, byte[]> records) {
+    DataInputStream in = null;
+
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      while (true) {
+        RecipientDevice device = new RecipientDevice(in.readLong(), in.readInt());
+        int             length = in.readInt();
+
+        if (length == CLEAN) {
+          records.remove(device);
+        } else if (length == DELETED) {
+          records.put(device, null);
+        } else {
+          byte[] record = new byte[length];
+          in.readFully(record);
+          records.put(device, record);
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // Nothing journaled.
+    } catch (EOFException e) {
+      // The end of the journal, or an entry cut short by the process dying
+      // before the save it belongs to returned.
+    } catch (IOException e) {
+      Log.w("SessionJournal", e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          Log.w("SessionJournal", e);
+        }
+      }
+    }
+  }
+
+  private void append(RecipientDevice device, int length, byte[] record) throws IOException {
+    ByteArrayOutputStream entry     = new ByteArrayOutputStream(16 + (record == null ? 0 : record.length));
+    DataOutputStream      entryData = new DataOutputStream(entry);
+
+    entryData.writeLong(device.getRecipientId());
+    entryData.writeInt(device.getDeviceId());
+    entryData.writeInt(length);
+
+    if (record != null) {
+      entryData.write(record);
+    }
+
+    if (out == null) {
+      out = new FileOutputStream(journalFile, true);
+    }
+
+    // A single write, so an entry is either whole or cut short at the end.
+    out.write(entry.toByteArray());
+  }
+
+  private static void copy(File file, FileOutputStream out) throws IOException {
+    FileInputStream in     = new FileInputStream(file);
+    byte[]          buffer = new byte[4096];
+    int             read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        Log.w("SessionJournal", e);
+      }
+
+      out = null;
+    }
+  }
+}
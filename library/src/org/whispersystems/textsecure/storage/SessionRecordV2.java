@@ -38,6 +38,7 @@ import org.whispersystems.textsecure.crypto.ratchet.RootKey;
 import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure.Chain;
 import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure.PendingKeyExchange;
 import org.whispersystems.textsecure.storage.StorageProtos.SessionStructure.PendingPreKey;
+import org.whispersystems.textsecure.util.LockStripes;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -45,9 +46,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.crypto.spec.SecretKeySpec;
 
@@ -59,13 +61,17 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class SessionRecordV2 extends Record {
 
-  private static final Object FILE_LOCK = new Object();
+  private static final LockStripes FILE_LOCKS = new LockStripes(32);
   private static final int CURRENT_VERSION = 1;
+  private static final int MAX_RECEIVER_CHAINS = 5;
 
-  private final MasterSecret masterSecret;
+  private final MasterSecret    masterSecret;
+  private final RecipientDevice peer;
   private StorageProtos.SessionStructure sessionStructure =
       StorageProtos.SessionStructure.newBuilder().build();
 
+  private LinkedHashMap<ByteString, ReceiverChain> receiverChains;
+
   public SessionRecordV2(Context context, MasterSecret masterSecret, RecipientDevice peer) {
     this(context, masterSecret, peer.getRecipientId(), peer.getDeviceId());
   }
@@ -73,14 +79,31 @@ public class SessionRecordV2 extends Record {
   public SessionRecordV2(Context context, MasterSecret masterSecret, long recipientId, int deviceId) {
     super(context, SESSIONS_DIRECTORY_V2, getRecordName(recipientId, deviceId));
     this.masterSecret = masterSecret;
+    this.peer         = new RecipientDevice(recipientId, deviceId);
+    SessionCache.getInstance().recover(context);
     loadData();
   }
 
+  private SessionRecordV2(Context context, RecipientDevice peer) {
+    super(context, SESSIONS_DIRECTORY_V2, getRecordName(peer.getRecipientId(), peer.getDeviceId()));
+    this.masterSecret = null;
+    this.peer         = peer;
+  }
+
+  private SessionRecordV2(SessionRecordV2 record) {
+    super(record.context, SESSIONS_DIRECTORY_V2, record.address);
+    this.masterSecret     = record.masterSecret;
+    this.peer             = record.peer;
+    this.sessionStructure = record.getStructure();
+  }
+
   private static String getRecordName(long recipientId, int deviceId) {
     return recipientId + (deviceId == RecipientDevice.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
   }
 
   public static List<Integer> getSessionSubDevices(Context context, CanonicalRecipient recipient) {
+    SessionCache.getInstance().recover(context);
+
     List<Integer> results  = new LinkedList<Integer>();
     File          parent   = getParentDirectory(context, SESSIONS_DIRECTORY_V2);
     String[]      children = parent.list();
@@ -106,17 +129,25 @@ public class SessionRecordV2 extends Record {
   public static void deleteAll(Context context, CanonicalRecipient recipient) {
     List<Integer> devices = getSessionSubDevices(context, recipient);
 
-    delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipient.getRecipientId(),
-                                                         RecipientDevice.DEFAULT_DEVICE_ID));
+    delete(context, new RecipientDevice(recipient.getRecipientId(), RecipientDevice.DEFAULT_DEVICE_ID));
 
     for (int device : devices) {
-      delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipient.getRecipientId(), device));
+      delete(context, new RecipientDevice(recipient.getRecipientId(), device));
     }
   }
 
   public static void delete(Context context, RecipientDevice recipientDevice) {
-    delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipientDevice.getRecipientId(),
-                                                         recipientDevice.getDeviceId()));
+    SessionCache.getInstance().recover(context);
+
+    synchronized (getFileLock(recipientDevice)) {
+      SessionCache.getInstance().remove(recipientDevice);
+      delete(context, SESSIONS_DIRECTORY_V2, getRecordName(recipientDevice.getRecipientId(),
+                                                           recipientDevice.getDeviceId()));
+    }
+  }
+
+  static Object getFileLock(RecipientDevice recipientDevice) {
+    return FILE_LOCKS.get(recipientDevice);
   }
 
   public static boolean hasSession(Context context, MasterSecret masterSecret,
@@ -128,12 +159,28 @@ public class SessionRecordV2 extends Record {
   public static boolean hasSession(Context context, MasterSecret masterSecret,
                                    long recipientId, int deviceId)
   {
+    SessionCache.getInstance().recover(context);
+
     return hasRecord(context, SESSIONS_DIRECTORY_V2, getRecordName(recipientId, deviceId)) &&
         new SessionRecordV2(context, masterSecret, recipientId, deviceId).hasSenderChain();
   }
 
+  /**
+   * Writes out any session state that is still only held in memory, and
+   * drops all cached sessions.
+   */
+  public static void clearCache() {
+    SessionCache.getInstance().clear();
+  }
+
+  @Override
+  public void delete() {
+    delete(context, peer);
+  }
+
   public void clear() {
     this.sessionStructure = StorageProtos.SessionStructure.newBuilder().build();
+    this.receiverChains   = null;
   }
 
   public void setSessionVersion(int version) {
@@ -225,36 +272,18 @@ public class SessionRecordV2 extends Record {
     return sessionStructure.hasSenderChain();
   }
 
-  private Pair<Chain,Integer> getReceiverChain(ECPublicKey senderEphemeral) {
-    List<Chain> receiverChains = sessionStructure.getReceiverChainsList();
-    int         index          = 0;
-
-    for (Chain receiverChain : receiverChains) {
-      try {
-        ECPublicKey chainSenderEphemeral = Curve.decodePoint(receiverChain.getSenderEphemeral().toByteArray(), 0);
-
-        if (chainSenderEphemeral.equals(senderEphemeral)) {
-          return new Pair<Chain,Integer>(receiverChain,index);
-        }
-      } catch (InvalidKeyException e) {
-        Log.w("SessionRecordV2", e);
-      }
-
-      index++;
-    }
-
-    return null;
+  private ReceiverChain getReceiverChain(ECPublicKey senderEphemeral) {
+    return getReceiverChains().get(ByteString.copyFrom(senderEphemeral.serialize()));
   }
 
   public ChainKey getReceiverChainKey(ECPublicKey senderEphemeral) {
-    Pair<Chain,Integer> receiverChainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               receiverChain         = receiverChainAndIndex.first;
+    ReceiverChain receiverChain = getReceiverChain(senderEphemeral);
 
     if (receiverChain == null) {
       return null;
     } else {
-      return new ChainKey(receiverChain.getChainKey().getKey().toByteArray(),
-                          receiverChain.getChainKey().getIndex());
+      return new ChainKey(receiverChain.chainKey.getKey().toByteArray(),
+                          receiverChain.chainKey.getIndex());
     }
   }
 
@@ -264,18 +293,9 @@ public class SessionRecordV2 extends Record {
                                             .setIndex(chainKey.getIndex())
                                             .build();
 
-    Chain chain = Chain.newBuilder()
-                       .setChainKey(chainKeyStructure)
-                       .setSenderEphemeral(ByteString.copyFrom(senderEphemeral.serialize()))
-                       .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().addReceiverChains(chain).build();
+    ByteString senderEphemeralBytes = ByteString.copyFrom(senderEphemeral.serialize());
 
-    if (this.sessionStructure.getReceiverChainsList().size() > 5) {
-      this.sessionStructure = this.sessionStructure.toBuilder()
-                                                   .removeReceiverChains(0)
-                                                   .build();
-    }
+    getReceiverChains().put(senderEphemeralBytes, new ReceiverChain(senderEphemeralBytes, chainKeyStructure));
   }
 
   public void setSenderChain(ECKeyPair senderEphemeralPair, ChainKey chainKey) {
@@ -312,92 +332,83 @@ public class SessionRecordV2 extends Record {
   }
 
   public boolean hasMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first;
-
-    if (chain == null) {
-      return false;
-    }
-
-    List<Chain.MessageKey> messageKeyList = chain.getMessageKeysList();
-
-    for (Chain.MessageKey messageKey : messageKeyList) {
-      if (messageKey.getIndex() == counter) {
-        return true;
-      }
-    }
-
-    return false;
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
+    return chain != null && chain.messageKeys.containsKey(counter);
   }
 
   public MessageKeys removeMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first;
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
     if (chain == null) {
       return null;
     }
 
-    List<Chain.MessageKey>     messageKeyList     = new LinkedList<Chain.MessageKey>(chain.getMessageKeysList());
-    Iterator<Chain.MessageKey> messageKeyIterator = messageKeyList.iterator();
-    MessageKeys                result             = null;
+    Chain.MessageKey messageKey = chain.messageKeys.remove(counter);
 
-    while (messageKeyIterator.hasNext()) {
-      Chain.MessageKey messageKey = messageKeyIterator.next();
+    if (messageKey == null) {
+      return null;
+    }
 
-      if (messageKey.getIndex() == counter) {
-        result = new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
-                                 new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
-                                 messageKey.getIndex());
+    return new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
+                           new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
+                           messageKey.getIndex());
+  }
 
-        messageKeyIterator.remove();
-        break;
-      }
-    }
+  public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
+    ReceiverChain    chain               = getReceiverChain(senderEphemeral);
+    Chain.MessageKey messageKeyStructure = Chain.MessageKey.newBuilder()
+                                                .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
+                                                .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
+                                                .setIndex(messageKeys.getCounter())
+                                                .build();
 
-    Chain updatedChain = chain.toBuilder().clearMessageKeys()
-                              .addAllMessageKeys(messageKeyList)
-                              .build();
+    chain.messageKeys.put(messageKeys.getCounter(), messageKeyStructure);
+  }
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second, updatedChain)
-                                                 .build();
+  public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
-    return result;
+    chain.chainKey = Chain.ChainKey.newBuilder()
+                                   .setKey(ByteString.copyFrom(chainKey.getKey()))
+                                   .setIndex(chainKey.getIndex())
+                                   .build();
   }
 
-  public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
-    Pair<Chain,Integer> chainAndIndex       = getReceiverChain(senderEphemeral);
-    Chain               chain               = chainAndIndex.first;
-    Chain.MessageKey    messageKeyStructure = Chain.MessageKey.newBuilder()
-                                                   .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
-                                                   .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
-                                                   .setIndex(messageKeys.getCounter())
-                                                   .build();
-
-    Chain updatedChain = chain.toBuilder()
-                              .addMessageKeys(messageKeyStructure)
-                              .build();
+  /**
+   * The receiver chains are indexed by sender ephemeral on first use, and
+   * removed from the session structure until it's serialized again.
+   */
+  private LinkedHashMap<ByteString, ReceiverChain> getReceiverChains() {
+    if (receiverChains == null) {
+      receiverChains = new LinkedHashMap<ByteString, ReceiverChain>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteString, ReceiverChain> eldest) {
+          return size() > MAX_RECEIVER_CHAINS;
+        }
+      };
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second, updatedChain)
-                                                 .build();
+      for (Chain chain : sessionStructure.getReceiverChainsList()) {
+        receiverChains.put(chain.getSenderEphemeral(), new ReceiverChain(chain));
+      }
+
+      sessionStructure = sessionStructure.toBuilder().clearReceiverChains().build();
+    }
+
+    return receiverChains;
   }
 
-  public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first;
+  private StorageProtos.SessionStructure getStructure() {
+    if (receiverChains == null) {
+      return sessionStructure;
+    }
 
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                            .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                            .setIndex(chainKey.getIndex())
-                                            .build();
+    StorageProtos.SessionStructure.Builder builder = sessionStructure.toBuilder();
 
-    Chain updatedChain = chain.toBuilder().setChainKey(chainKeyStructure).build();
+    for (ReceiverChain receiverChain : receiverChains.values()) {
+      builder.addReceiverChains(receiverChain.toChain());
+    }
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second, updatedChain)
-                                                 .build();
+    return builder.build();
   }
 
   public void setPendingKeyExchange(int sequence,
@@ -518,15 +529,58 @@ public class SessionRecordV2 extends Record {
   }
 
   public void save() {
-    synchronized (FILE_LOCK) {
+    SessionCache.getInstance().writeThrough(peer, new SessionRecordV2(this));
+  }
+
+  /**
+   * Saves this record to the session cache, leaving the rewrite of its file
+   * to be coalesced with any other saves that follow shortly after. The
+   * record is journaled before this returns, so it's restored if the process
+   * dies before then.
+   */
+  public void saveDeferred() {
+    if (!hasRecord(context, SESSIONS_DIRECTORY_V2, address)) {
+      save();
+    } else {
+      SessionCache.getInstance().putDirty(peer, new SessionRecordV2(this));
+    }
+  }
+
+  RecipientDevice getPeer() {
+    return peer;
+  }
+
+  byte[] getEncryptedRecord() {
+    return new MasterCipher(masterSecret).encryptBytes(getStructure().toByteArray());
+  }
+
+  /**
+   * Writes back a record saved with {@link #getEncryptedRecord()}, or deletes
+   * the session if it's null.
+   */
+  static void restore(Context context, RecipientDevice peer, byte[] encryptedRecord) {
+    synchronized (getFileLock(peer)) {
+      if (encryptedRecord == null) {
+        delete(context, SESSIONS_DIRECTORY_V2, getRecordName(peer.getRecipientId(), peer.getDeviceId()));
+      } else {
+        new SessionRecordV2(context, peer).write(encryptedRecord);
+      }
+    }
+  }
+
+  void write() {
+    write(getEncryptedRecord());
+  }
+
+  void write(byte[] encryptedRecord) {
+    synchronized (getFileLock(peer)) {
       try {
         RandomAccessFile file = openRandomAccessFile();
         FileChannel out       = file.getChannel();
         out.position(0);
 
-        MasterCipher cipher = new MasterCipher(masterSecret);
         writeInteger(CURRENT_VERSION, out);
-        writeBlob(cipher.encryptBytes(sessionStructure.toByteArray()), out);
+        writeBlob(encryptedRecord, out);
 
         out.truncate(out.position());
         file.close();
@@ -537,7 +591,14 @@ public class SessionRecordV2 extends Record {
   }
 
   private void loadData() {
-    synchronized (FILE_LOCK) {
+    SessionRecordV2 cached = SessionCache.getInstance().get(peer);
+
+    if (cached != null) {
+      this.sessionStructure = cached.sessionStructure;
+      return;
+    }
+
+    synchronized (getFileLock(peer)) {
       try {
         FileInputStream in = this.openInputStream();
         int versionMarker  = readInteger(in);
@@ -554,6 +615,8 @@ public class SessionRecordV2 extends Record {
                                              .parseFrom(cipher.decryptBytes(encryptedBlob));
 
         in.close();
+
+        SessionCache.getInstance().putClean(peer, new SessionRecordV2(this));
       } catch (FileNotFoundException e) {
         Log.w("SessionRecordV2", "No session information found.");
         // XXX
@@ -566,4 +629,32 @@ public class SessionRecordV2 extends Record {
     }
   }
 
+  private static class ReceiverChain {
+    private final ByteString                               senderEphemeral;
+    private final LinkedHashMap<Integer, Chain.MessageKey> messageKeys;
+    private       Chain.ChainKey                           chainKey;
+
+    public ReceiverChain(ByteString senderEphemeral, Chain.ChainKey chainKey) {
+      this.senderEphemeral = senderEphemeral;
+      this.chainKey        = chainKey;
+      this.messageKeys     = new LinkedHashMap<Integer, Chain.MessageKey>();
+    }
+
+    public ReceiverChain(Chain chain) {
+      this(chain.getSenderEphemeral(), chain.getChainKey());
+
+      for (Chain.MessageKey messageKey : chain.getMessageKeysList()) {
+        messageKeys.put(messageKey.getIndex(), messageKey);
+      }
+    }
+
+    public Chain toChain() {
+      return Chain.newBuilder()
+                  .setSenderEphemeral(senderEphemeral)
+                  .setChainKey(chainKey)
+                  .addAllMessageKeys(messageKeys.values())
+                  .build();
+    }
+  }
+
 }
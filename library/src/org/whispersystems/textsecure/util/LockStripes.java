@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.whispersystems.textsecure.util;
+
+/**
+ * A fixed set of monitors that keys are hashed onto, so that work on
+ * unrelated keys can proceed in parallel while work on the same key
+ * is serialized.
+ */
+public class LockStripes {
+
+  private final Object[] locks;
+
+  public LockStripes(int count) {
+    this.locks = new Object[count];
+
+    for (int i=0;i<count;i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  public Object get(Object key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+    return locks[(hash & 0x7FFFFFFF) % locks.length];
+  }
+}
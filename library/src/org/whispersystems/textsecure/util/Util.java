@@ -88,6 +88,10 @@ public class Util {
     return value == null || value.length() == 0;
   }
 
+  public static boolean isEquals(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
   public static void showAlertDialog(Context context, String title, String message) {
     AlertDialog.Builder dialog = new AlertDialog.Builder(context);
     dialog.setTitle(title);
@@ -139,6 +143,8 @@ public class Util {
     for (;;) {
       int read = in.read(buffer, offset, buffer.length - offset);
 
+      if (read == -1) throw new IOException("Stream ended early!");
+
       if (read + offset < buffer.length) offset += read;
       else                		           return;
     }
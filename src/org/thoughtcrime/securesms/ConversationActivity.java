@@ -1042,7 +1042,7 @@ public class ConversationActivity extends PassphraseRequiredSherlockFragmentActi
       @Override
       protected Void doInBackground(Long... params) {
         DatabaseFactory.getThreadDatabase(ConversationActivity.this).setRead(params[0]);
-        MessageNotifier.updateNotification(ConversationActivity.this, masterSecret);
+        MessageNotifier.refreshNotification(ConversationActivity.this, masterSecret, params[0]);
         return null;
       }
     }.execute(threadId);
@@ -16,6 +16,7 @@ import android.view.MenuItem;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
 
 import com.actionbarsherlock.app.SherlockListFragment;
@@ -35,11 +36,15 @@ public class ConversationFragment extends SherlockListFragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
 
+  private static final int OLDER_PAGE_THRESHOLD = 5;
+
   private ConversationFragmentListener listener;
 
   private MasterSecret masterSecret;
   private Recipients   recipients;
   private long         threadId;
+  private int          pendingGeneration;
+  private int          displayedGeneration;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle bundle) {
@@ -198,6 +203,7 @@ public class ConversationFragment extends SherlockListFragment
                                                   new FailedIconClickHandler(),
                                                   (!this.recipients.isSingleRecipient()) || this.recipients.isGroupRecipient()));
       getListView().setRecyclerListener((ConversationAdapter)getListAdapter());
+      getListView().setOnScrollListener(new OlderPageScrollListener());
       getLoaderManager().initLoader(0, null, this);
     }
   }
@@ -209,7 +215,33 @@ public class ConversationFragment extends SherlockListFragment
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
-    ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    CursorAdapter adapter = (CursorAdapter)getListAdapter();
+
+    if (!(cursor instanceof ConversationLoader.WindowCursor)) {
+      adapter.changeCursor(cursor);
+      return;
+    }
+
+    ConversationLoader.WindowCursor windowCursor = (ConversationLoader.WindowCursor)cursor;
+
+    // Only the load that grew the window by one page shifts what's on screen;
+    // reloads for new messages in the meantime leave the scroll position alone.
+    if (adapter.getCursor() != null && windowCursor.getGeneration() == displayedGeneration + 1) {
+      int  position  = getListView().getFirstVisiblePosition();
+      View firstView = getListView().getChildAt(0);
+      int  offset    = firstView == null ? 0 : firstView.getTop();
+
+      adapter.changeCursor(cursor);
+      getListView().setSelectionFromTop(position + windowCursor.getPrepended(), offset);
+    } else {
+      adapter.changeCursor(cursor);
+    }
+
+    displayedGeneration = windowCursor.getGeneration();
+
+    if (pendingGeneration != 0 && displayedGeneration >= pendingGeneration) {
+      pendingGeneration = 0;
+    }
   }
 
   @Override
@@ -217,6 +249,28 @@ public class ConversationFragment extends SherlockListFragment
     ((CursorAdapter)getListAdapter()).changeCursor(null);
   }
 
+  /**
+   * Asks the loader for the previous page of the thread as the user nears the
+   * top of what's been loaded so far.
+   */
+  private class OlderPageScrollListener implements AbsListView.OnScrollListener {
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (pendingGeneration != 0 || totalItemCount == 0 || firstVisibleItem > OLDER_PAGE_THRESHOLD) {
+        return;
+      }
+
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader instanceof ConversationLoader && ((ConversationLoader)loader).hasOlderPages()) {
+        pendingGeneration = ((ConversationLoader)loader).loadOlderPage();
+      }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+  }
+
   private class FailedIconClickHandler extends Handler {
     @Override
     public void handleMessage(android.os.Message message) {
@@ -262,7 +262,7 @@ public class ConversationListActivity extends PassphraseRequiredSherlockFragment
       @Override
       public void onChange(boolean selfChange) {
         super.onChange(selfChange);
-        RecipientFactory.clearCache();
+        RecipientFactory.invalidateChangedContacts(ConversationListActivity.this);
       }
     };
 
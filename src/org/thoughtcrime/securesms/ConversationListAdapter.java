@@ -47,6 +47,8 @@ public class ConversationListAdapter extends CursorAdapter implements AbsListVie
   private final Set<Long> batchSet = Collections.synchronizedSet(new HashSet<Long>());
   private boolean batchMode        = false;
 
+  private ThreadDatabase.Reader reader;
+
   public ConversationListAdapter(Context context, Cursor cursor, MasterSecret masterSecret) {
     super(context, cursor);
     this.masterSecret = masterSecret;
@@ -62,8 +64,11 @@ public class ConversationListAdapter extends CursorAdapter implements AbsListVie
   @Override
   public void bindView(View view, Context context, Cursor cursor) {
     if (masterSecret != null) {
-      ThreadDatabase.Reader reader = DatabaseFactory.getThreadDatabase(context).readerFor(cursor, masterSecret);
-      ThreadRecord record          = reader.getCurrent();
+      if (reader == null || !reader.isReaderFor(cursor)) {
+        reader = DatabaseFactory.getThreadDatabase(context).readerFor(cursor, masterSecret);
+      }
+
+      ThreadRecord record = reader.getCurrent();
 
       ((ConversationListItem)view).set(record, batchSet, batchMode);
     }
@@ -224,7 +224,7 @@ public class ConversationListFragment extends SherlockListFragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationListLoader(getActivity(), queryFilter);
+    return new ConversationListLoader(getActivity(), queryFilter, masterSecret);
   }
 
   @Override
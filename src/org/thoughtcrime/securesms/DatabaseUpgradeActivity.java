@@ -68,13 +68,22 @@ public class DatabaseUpgradeActivity extends Activity {
           .execute(VersionTracker.getLastSeenVersion(this));
     } else {
       VersionTracker.updateLastSeenVersion(this);
-      DecryptingQueue.schedulePendingDecrypts(DatabaseUpgradeActivity.this, masterSecret);
+      schedulePendingWork();
       MessageNotifier.updateNotification(DatabaseUpgradeActivity.this, masterSecret);
       startActivity((Intent)getIntent().getParcelableExtra("next_intent"));
       finish();
     }
   }
 
+  /**
+   * Both of these hand their work to threads of their own, so they're safe
+   * to call from the main thread.
+   */
+  private void schedulePendingWork() {
+    DecryptingQueue.schedulePendingDecrypts(getApplicationContext(), masterSecret);
+    DatabaseFactory.getSearchIndexDatabase(this).scheduleBackfill(masterSecret);
+  }
+
   private boolean needsUpgradeTask() {
     try {
       int currentVersionCode = getPackageManager().getPackageInfo(getPackageName(), 0).versionCode;
@@ -153,7 +162,7 @@ public class DatabaseUpgradeActivity extends Activity {
     @Override
     protected void onPostExecute(Void result) {
       VersionTracker.updateLastSeenVersion(DatabaseUpgradeActivity.this);
-      DecryptingQueue.schedulePendingDecrypts(DatabaseUpgradeActivity.this, masterSecret);
+      schedulePendingWork();
       MessageNotifier.updateNotification(DatabaseUpgradeActivity.this, masterSecret);
 
       startActivity((Intent)getIntent().getParcelableExtra("next_intent"));
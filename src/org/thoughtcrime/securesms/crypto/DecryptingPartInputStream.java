@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -84,6 +85,53 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 	
+  /**
+   * Works out the length of a part's plaintext from its padding, by
+   * decrypting only the last cipher block rather than the whole part.
+   */
+  public static long getPlaintextLength(File file, MasterSecret masterSecret) throws IOException {
+    long ciphertextLength = file.length() - IV_LENGTH - MAC_LENGTH;
+
+    if (ciphertextLength < IV_LENGTH || ciphertextLength % IV_LENGTH != 0)
+      throw new IOException("Part isn't a whole number of blocks!");
+
+    RandomAccessFile in         = new RandomAccessFile(file, "r");
+    byte[]           lastBlocks = new byte[IV_LENGTH * 2];
+
+    try {
+      in.seek(ciphertextLength - IV_LENGTH);
+      in.readFully(lastBlocks);
+    } finally {
+      in.close();
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(),
+                  new IvParameterSpec(lastBlocks, 0, IV_LENGTH));
+
+      byte[] lastBlock = cipher.doFinal(lastBlocks, IV_LENGTH, IV_LENGTH);
+      int    padding   = lastBlock[lastBlock.length - 1] & 0xFF;
+
+      if (padding < 1 || padding > IV_LENGTH)
+        throw new IOException("Bad padding!");
+
+      return ciphertextLength - padding;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException e) {
+      throw new AssertionError(e);
+    } catch (BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
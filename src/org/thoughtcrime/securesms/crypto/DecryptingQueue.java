@@ -39,6 +39,7 @@ import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.PushReceiver;
 import org.thoughtcrime.securesms.service.SendReceiveService;
 import org.thoughtcrime.securesms.sms.SmsTransportDetails;
+import org.thoughtcrime.securesms.util.PartitionedExecutor;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.textsecure.crypto.InvalidKeyException;
 import org.whispersystems.textsecure.crypto.InvalidMessageException;
@@ -53,7 +54,7 @@ import org.whispersystems.textsecure.util.Hex;
 import org.whispersystems.textsecure.util.Util;
 
 import java.io.IOException;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import ws.com.google.android.mms.ContentType;
@@ -65,18 +66,29 @@ import ws.com.google.android.mms.pdu.RetrieveConf;
 /**
  * A work queue for processing a number of encryption operations.
  *
+ * Work is partitioned by sender, so messages from the same sender are
+ * decrypted one at a time and in order (which the ratchet requires), while
+ * messages from different senders are decrypted in parallel.
+ *
  * @author Moxie Marlinspike
  */
 
 public class DecryptingQueue {
 
-  private static final Executor executor = Executors.newSingleThreadExecutor();
+  private static final int MAX_PENDING = 100;
+
+  private static final PartitionedExecutor executor =
+      new PartitionedExecutor("DecryptingQueue",
+                              Math.max(2, Runtime.getRuntime().availableProcessors()),
+                              MAX_PENDING);
+
+  private static final ExecutorService pendingExecutor = Executors.newSingleThreadExecutor();
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
                                         long messageId, long threadId, MultimediaMessagePdu mms)
   {
     MmsDecryptionItem runnable = new MmsDecryptionItem(context, masterSecret, messageId, threadId, mms);
-    executor.execute(runnable);
+    executor.execute(getPartition(mms), runnable);
   }
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
@@ -87,7 +99,7 @@ public class DecryptingQueue {
     DecryptionWorkItem runnable = new DecryptionWorkItem(context, masterSecret, messageId, threadId,
                                                          originator, deviceId, body,
                                                          isSecureMessage, isKeyExchange, isEndSession);
-    executor.execute(runnable);
+    executor.execute(originator, runnable);
   }
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
@@ -95,10 +107,41 @@ public class DecryptingQueue {
   {
     PushDecryptionWorkItem runnable = new PushDecryptionWorkItem(context, masterSecret,
                                                                  messageId, message);
-    executor.execute(runnable);
+    executor.execute(message.getSource(), runnable);
+  }
+
+  public static int getPendingCount() {
+    return executor.getPendingCount();
+  }
+
+  public static long getCompletedCount() {
+    return executor.getCompletedCount();
+  }
+
+  private static Object getPartition(MultimediaMessagePdu mms) {
+    if (mms.getFrom() == null) return "";
+    else                       return mms.getFrom().getString();
   }
 
-  public static void schedulePendingDecrypts(Context context, MasterSecret masterSecret) {
+  /**
+   * Queues every stored message still waiting to be decrypted. The backlog
+   * is read on a thread of its own, since it waits on the decrypt queue
+   * whenever that's full, so this returns right away.
+   */
+  public static void schedulePendingDecrypts(final Context context, final MasterSecret masterSecret) {
+    pendingExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          schedulePendingDecryptsBlocking(context, masterSecret);
+        } catch (RuntimeException e) {
+          Log.w("DecryptingQueue", e);
+        }
+      }
+    });
+  }
+
+  private static void schedulePendingDecryptsBlocking(Context context, MasterSecret masterSecret) {
     Log.w("DecryptingQueue", "Processing pending decrypts...");
 
     EncryptingSmsDatabase smsDatabase  = DatabaseFactory.getEncryptingSmsDatabase(context);
@@ -115,7 +158,7 @@ public class DecryptingQueue {
       pushReader = pushDatabase.readerFor(pushDatabase.getPending());
 
       while ((record = smsReader.getNext()) != null) {
-        scheduleDecryptFromCursor(context, masterSecret, record);
+        if (!scheduleDecryptFromCursor(context, masterSecret, record, true)) return;
       }
 
       while ((message = pushReader.getNext()) != null) {
@@ -126,11 +169,17 @@ public class DecryptingQueue {
           context.startService(intent);
 
           pushDatabase.delete(pushReader.getCurrentId());
-        } else {
-          scheduleDecryption(context, masterSecret, pushReader.getCurrentId(), message);
+        } else if (!executor.executeWithBackpressure(message.getSource(),
+                                                     new PushDecryptionWorkItem(context, masterSecret,
+                                                                                pushReader.getCurrentId(),
+                                                                                message)))
+        {
+          return;
         }
       }
 
+      Log.w("DecryptingQueue", "Pending decrypts scheduled, " + executor.getPendingCount() + " outstanding.");
+
     } finally {
       if (smsReader != null)
         smsReader.close();
@@ -150,7 +199,7 @@ public class DecryptingQueue {
 
       while ((record = reader.getNext()) != null) {
         DatabaseFactory.getSmsDatabase(context).markAsDecrypting(record.getId());
-        scheduleDecryptFromCursor(context, masterSecret, record);
+        scheduleDecryptFromCursor(context, masterSecret, record, false);
       }
     } finally {
       if (reader != null)
@@ -158,8 +207,8 @@ public class DecryptingQueue {
     }
   }
 
-  private static void scheduleDecryptFromCursor(Context context, MasterSecret masterSecret,
-                                                SmsMessageRecord record)
+  private static boolean scheduleDecryptFromCursor(Context context, MasterSecret masterSecret,
+                                                   SmsMessageRecord record, boolean backpressure)
   {
     long messageId          = record.getId();
     long threadId           = record.getThreadId();
@@ -170,9 +219,16 @@ public class DecryptingQueue {
     boolean isKeyExchange   = record.isKeyExchange();
     boolean isEndSession    = record.isEndSession();
 
-    scheduleDecryption(context, masterSecret, messageId,  threadId,
-                       originator, originatorDeviceId, body,
-                       isSecureMessage, isKeyExchange, isEndSession);
+    DecryptionWorkItem runnable = new DecryptionWorkItem(context, masterSecret, messageId, threadId,
+                                                         originator, originatorDeviceId, body,
+                                                         isSecureMessage, isKeyExchange, isEndSession);
+
+    if (backpressure) {
+      return executor.executeWithBackpressure(originator, runnable);
+    }
+
+    executor.execute(originator, runnable);
+    return true;
   }
 
   private static class PushDecryptionWorkItem implements Runnable {
@@ -394,7 +450,7 @@ public class DecryptingQueue {
       }
 
       database.updateMessageBody(masterSecret, messageId, plaintextBody);
-      MessageNotifier.updateNotification(context, masterSecret);
+      MessageNotifier.refreshNotification(context, masterSecret, threadId);
     }
 
     private void handleLocalAsymmetricEncrypt() {
@@ -410,7 +466,7 @@ public class DecryptingQueue {
         }
 
         database.updateMessageBody(masterSecret, messageId, plaintextBody);
-        MessageNotifier.updateNotification(context, masterSecret);
+        MessageNotifier.refreshNotification(context, masterSecret, threadId);
       } catch (InvalidMessageException ime) {
         Log.w("DecryptionQueue", ime);
         database.markAsDecryptFailed(messageId);
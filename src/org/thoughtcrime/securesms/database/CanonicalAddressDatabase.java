@@ -22,14 +22,24 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+/**
+ * Maps addresses to the ids that recipients are known by.
+ *
+ * The whole table is read into memory once, and every lookup is answered
+ * from there without locking. Writers build a new copy of the in-memory
+ * index and swap it in, so readers never see one half-updated.
+ */
 public class CanonicalAddressDatabase {
 
   private static final int    DATABASE_VERSION = 1;
@@ -39,15 +49,15 @@ public class CanonicalAddressDatabase {
   private static final String ADDRESS_COLUMN   = "address";
 
   private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL);";
-  private static final String[] ID_PROJECTION  = {ID_COLUMN};
+  private static final String[] PROJECTION     = {ID_COLUMN, ADDRESS_COLUMN};
   private static final String SELECTION        = "PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
   private static final Object lock             = new Object();
 
   private static CanonicalAddressDatabase instance;
   private DatabaseHelper databaseHelper;
 
-  private final Map<String,Long> addressCache = Collections.synchronizedMap(new HashMap<String,Long>());
-  private final Map<String,String> idCache    = Collections.synchronizedMap(new HashMap<String,String>());
+  private final    Object       writeLock = new Object();
+  private volatile AddressIndex index     = AddressIndex.EMPTY;
 
   public static CanonicalAddressDatabase getInstance(Context context) {
     synchronized (lock) {
@@ -71,59 +81,46 @@ public class CanonicalAddressDatabase {
   }
 
   private void fillCache() {
-    Cursor cursor = null;
+    SortedMap<Long, String> addressesById = new TreeMap<Long, String>();
+    SortedMap<String, Long> idsByAddress  = new TreeMap<String, Long>();
+    Cursor                  cursor        = null;
 
     try {
       SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      cursor            = db.query(TABLE, null, null, null, null, null, null);
+      cursor            = db.query(TABLE, PROJECTION, null, null, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        long id        = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
-        String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
+        long   id      = cursor.getLong(0);
+        String address = getDisplayAddress(cursor.getString(1));
 
-        if (address == null || address.trim().length() == 0)
-          address = "Anonymous";
-
-        idCache.put(id+"", address);
-        addressCache.put(address, id);
+        addressesById.put(id, address);
+        idsByAddress.put(address, id);
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
-  }
-
-  public String getAddressFromId(String id) {
-    if (id == null || id.trim().equals("")) return "Anonymous";
-
-    String cachedAddress = idCache.get(id);
-
-    if (cachedAddress != null)
-      return cachedAddress;
-
-    Cursor cursor = null;
 
-    try {
-      Log.w("CanonicalAddressDatabase", "Hitting DB on query [ID].");
-
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      cursor            = db.query(TABLE, null, ID_COLUMN + " = ?", new String[] {id+""}, null, null, null);
+    synchronized (writeLock) {
+      index = new AddressIndex(addressesById, idsByAddress);
+    }
+  }
 
-      if (!cursor.moveToFirst())
-        return "Anonymous";
+  public String getAddressFromId(long id) {
+    String address = index.getAddress(id);
+    return address == null ? "Anonymous" : address;
+  }
 
-      String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
+  public Map<Long, String> getAddressesFromIds(Collection<Long> ids) {
+    AddressIndex      index   = this.index;
+    Map<Long, String> results = new HashMap<Long, String>(ids.size());
 
-      if (address == null || address.trim().equals("")) {
-        return "Anonymous";
-      } else {
-        idCache.put(id, address);
-        return address;
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    for (long id : ids) {
+      String address = index.getAddress(id);
+      results.put(id, address == null ? "Anonymous" : address);
     }
+
+    return results;
   }
 
   public void close() {
@@ -132,55 +129,215 @@ public class CanonicalAddressDatabase {
   }
 
   public long getCanonicalAddress(String address) {
-    long canonicalAddress;
+    long canonicalAddress = index.getId(address);
 
-    if ((canonicalAddress = getCanonicalAddressFromCache(address)) != -1)
+    if (canonicalAddress != -1)
       return canonicalAddress;
 
-    canonicalAddress = getCanonicalAddressFromDatabase(address);
-    addressCache.put(address, canonicalAddress);
-
-    return canonicalAddress;
+    return getCanonicalAddresses(Collections.singletonList(address)).get(0);
   }
 
+  /**
+   * Looks up the ids for several addresses at once. Any that aren't known
+   * yet are matched against the table, or added to it, in a single
+   * transaction.
+   */
   public List<Long> getCanonicalAddresses(List<String> addresses) {
-    List<Long> addressList = new LinkedList<Long>();
+    AddressIndex index  = this.index;
+    List<String> misses = new ArrayList<String>();
 
     for (String address : addresses) {
-      addressList.add(getCanonicalAddress(address));
+      if (index.getId(address) == -1) {
+        misses.add(address);
+      }
     }
 
-    return addressList;
-  }
+    if (!misses.isEmpty()) {
+      index = getCanonicalAddressesFromDatabase(misses);
+    }
+
+    List<Long> results = new ArrayList<Long>(addresses.size());
 
-  private long getCanonicalAddressFromCache(String address) {
-    if (addressCache.containsKey(address))
-      return Long.valueOf(addressCache.get(address));
+    for (String address : addresses) {
+      results.add(index.getId(address));
+    }
 
-    return -1L;
+    return results;
   }
 
-  private long getCanonicalAddressFromDatabase(String address) {
-    Cursor cursor = null;
-    try {
-      SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-      String[] selectionArguments = new String[] {address};
-      cursor                      = db.query(TABLE, ID_PROJECTION, SELECTION, selectionArguments, null, null, null);
+  private AddressIndex getCanonicalAddressesFromDatabase(List<String> addresses) {
+    synchronized (writeLock) {
+      Map<Long, String> newAddressesById = new HashMap<Long, String>();
+      Map<String, Long> newIdsByAddress  = new HashMap<String, Long>();
+      SQLiteDatabase    db               = databaseHelper.getWritableDatabase();
+
+      db.beginTransaction();
+
+      try {
+        for (String address : addresses) {
+          if (index.getId(address) != -1 || newIdsByAddress.containsKey(address)) {
+            continue;
+          }
+
+          Cursor cursor = null;
+
+          try {
+            cursor = db.query(TABLE, PROJECTION, SELECTION, new String[] {address}, null, null, null);
+
+            if (cursor != null && cursor.moveToFirst()) {
+              long   id              = cursor.getLong(0);
+              String existingAddress = newAddressesById.get(id);
+
+              if (existingAddress == null) existingAddress = index.getAddress(id);
+              if (existingAddress == null) newAddressesById.put(id, getDisplayAddress(cursor.getString(1)));
+
+              newIdsByAddress.put(address, id);
+            } else {
+              ContentValues contentValues = new ContentValues(1);
+              contentValues.put(ADDRESS_COLUMN, address);
 
-      if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-        ContentValues contentValues = new ContentValues(1);
-        contentValues.put(ADDRESS_COLUMN, address);
+              long id = db.insert(TABLE, ADDRESS_COLUMN, contentValues);
 
-        return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
+              newAddressesById.put(id, address);
+              newIdsByAddress.put(address, id);
+            }
+          } finally {
+            if (cursor != null)
+              cursor.close();
+          }
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
       }
 
-      return cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
-    } finally {
-      if (cursor != null) {
-        cursor.close();
+      index = index.with(newAddressesById, newIdsByAddress);
+      return index;
+    }
+  }
+
+  private static String getDisplayAddress(String address) {
+    if (address == null || address.trim().length() == 0) return "Anonymous";
+    else                                                  return address;
+  }
+
+  /**
+   * An immutable snapshot of the table, kept in sorted parallel arrays so
+   * that ids aren't boxed and each address string is only held once.
+   * Addresses can have more than one spelling that maps to the same id.
+   */
+  private static class AddressIndex {
+
+    private static final AddressIndex EMPTY = new AddressIndex(new long[0], new String[0],
+                                                               new String[0], new long[0]);
+
+    private final long[]   ids;
+    private final String[] addressesById;
+    private final String[] addresses;
+    private final long[]   idsByAddress;
+
+    public AddressIndex(SortedMap<Long, String> addressesById, SortedMap<String, Long> idsByAddress) {
+      this.ids           = new long[addressesById.size()];
+      this.addressesById = new String[addressesById.size()];
+      this.addresses     = new String[idsByAddress.size()];
+      this.idsByAddress  = new long[idsByAddress.size()];
+
+      int i = 0;
+
+      for (Map.Entry<Long, String> entry : addressesById.entrySet()) {
+        this.ids[i]           = entry.getKey();
+        this.addressesById[i] = entry.getValue();
+        i++;
+      }
+
+      i = 0;
+
+      for (Map.Entry<String, Long> entry : idsByAddress.entrySet()) {
+        String canonical = getAddress(entry.getValue());
+
+        this.addresses[i]    = entry.getKey().equals(canonical) ? canonical : entry.getKey();
+        this.idsByAddress[i] = entry.getValue();
+        i++;
       }
     }
 
+    private AddressIndex(long[] ids, String[] addressesById, String[] addresses, long[] idsByAddress) {
+      this.ids           = ids;
+      this.addressesById = addressesById;
+      this.addresses     = addresses;
+      this.idsByAddress  = idsByAddress;
+    }
+
+    public String getAddress(long id) {
+      int position = Arrays.binarySearch(ids, id);
+      return position >= 0 ? addressesById[position] : null;
+    }
+
+    public long getId(String address) {
+      if (address == null) return -1;
+
+      int position = Arrays.binarySearch(addresses, address);
+      return position >= 0 ? idsByAddress[position] : -1;
+    }
+
+    /**
+     * Returns a copy with entries added for ids and addresses that aren't in
+     * this index yet. Each new entry's slot is found by binary search and the
+     * existing entries are block-copied around it, so nothing is re-sorted.
+     */
+    public AddressIndex with(Map<Long, String> newAddressesById, Map<String, Long> newIdsByAddress) {
+      long[]   addedIds            = new long[newAddressesById.size()];
+      long[]   mergedIds           = new long[ids.length + addedIds.length];
+      String[] mergedAddressesById = new String[mergedIds.length];
+      int      i                   = 0;
+      int      from                = 0;
+
+      for (long id : newAddressesById.keySet()) {
+        addedIds[i++] = id;
+      }
+
+      Arrays.sort(addedIds);
+
+      for (i=0;i<addedIds.length;i++) {
+        int to = -Arrays.binarySearch(ids, from, ids.length, addedIds[i]) - 1;
+
+        System.arraycopy(ids, from, mergedIds, from + i, to - from);
+        System.arraycopy(addressesById, from, mergedAddressesById, from + i, to - from);
+
+        mergedIds[to + i]           = addedIds[i];
+        mergedAddressesById[to + i] = newAddressesById.get(addedIds[i]);
+        from                        = to;
+      }
+
+      System.arraycopy(ids, from, mergedIds, from + addedIds.length, ids.length - from);
+      System.arraycopy(addressesById, from, mergedAddressesById, from + addedIds.length, ids.length - from);
+
+      String[] addedAddresses     = newIdsByAddress.keySet().toArray(new String[newIdsByAddress.size()]);
+      String[] mergedAddresses    = new String[addresses.length + addedAddresses.length];
+      long[]   mergedIdsByAddress = new long[mergedAddresses.length];
+
+      Arrays.sort(addedAddresses);
+      from = 0;
+
+      for (i=0;i<addedAddresses.length;i++) {
+        int    to        = -Arrays.binarySearch(addresses, from, addresses.length, addedAddresses[i]) - 1;
+        long   id        = newIdsByAddress.get(addedAddresses[i]);
+        String canonical = newAddressesById.get(id);
+
+        System.arraycopy(addresses, from, mergedAddresses, from + i, to - from);
+        System.arraycopy(idsByAddress, from, mergedIdsByAddress, from + i, to - from);
+
+        mergedAddresses[to + i]    = addedAddresses[i].equals(canonical) ? canonical : addedAddresses[i];
+        mergedIdsByAddress[to + i] = id;
+        from                       = to;
+      }
+
+      System.arraycopy(addresses, from, mergedAddresses, from + addedAddresses.length, addresses.length - from);
+      System.arraycopy(idsByAddress, from, mergedIdsByAddress, from + addedAddresses.length, addresses.length - from);
+
+      return new AddressIndex(mergedIds, mergedAddressesById, mergedAddresses, mergedIdsByAddress);
+    }
   }
 
   private static class DatabaseHelper extends SQLiteOpenHelper {
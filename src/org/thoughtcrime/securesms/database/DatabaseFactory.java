@@ -54,7 +54,11 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PUSH_DATABASE_VERSION = 10;
   private static final int INTRODUCED_GROUP_DATABASE_VERSION = 11;
   private static final int INTRODUCED_PUSH_FIX_VERSION       = 12;
-  private static final int DATABASE_VERSION                  = 12;
+  private static final int INTRODUCED_PUSH_TRANSFERS_VERSION = 13;
+  private static final int INTRODUCED_THREAD_DATES_VERSION   = 14;
+  private static final int INTRODUCED_MESSAGE_INDEX_VERSION  = 15;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION   = 16;
+  private static final int DATABASE_VERSION                  = 16;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -76,6 +80,8 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
+  private final PushTransferDatabase pushTransferDatabase;
+  private final SearchIndexDatabase searchIndexDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -145,6 +151,14 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static PushTransferDatabase getPushTransferDatabase(Context context) {
+    return getInstance(context).pushTransferDatabase;
+  }
+
+  public static SearchIndexDatabase getSearchIndexDatabase(Context context) {
+    return getInstance(context).searchIndexDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms              = new SmsDatabase(context, databaseHelper);
@@ -159,6 +173,8 @@ public class DatabaseFactory {
     this.draftDatabase    = new DraftDatabase(context, databaseHelper);
     this.pushDatabase     = new PushDatabase(context, databaseHelper);
     this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.pushTransferDatabase = new PushTransferDatabase(context, databaseHelper);
+    this.searchIndexDatabase  = new SearchIndexDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -176,6 +192,8 @@ public class DatabaseFactory {
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.pushTransferDatabase.reset(databaseHelper);
+    this.searchIndexDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -443,6 +461,9 @@ public class DatabaseFactory {
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(PushTransferDatabase.CREATE_TABLE);
+      db.execSQL(MmsSmsDatabase.CREATE_INDEX_TABLE);
+      executeStatements(db, SearchIndexDatabase.CREATE_TABLES);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -451,6 +472,10 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, PushTransferDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_INDEXS);
+      executeStatements(db, MmsSmsDatabase.CREATE_TRIGGERS);
+      executeStatements(db, SearchIndexDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -659,6 +684,40 @@ public class DatabaseFactory {
         db.execSQL("DROP TABLE push_backup;");
       }
 
+      if (oldVersion < INTRODUCED_PUSH_TRANSFERS_VERSION) {
+        db.execSQL("CREATE TABLE push_transfers (_id INTEGER PRIMARY KEY, part_id INTEGER UNIQUE, mms_id INTEGER, transfer_offset INTEGER DEFAULT 0, attempts INTEGER DEFAULT 0, next_attempt INTEGER DEFAULT 0);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS push_transfers_mms_id_index ON push_transfers (mms_id);");
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_DATES_VERSION) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_date_index ON sms (thread_id, date);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_date_index ON mms (thread_id, date_received);");
+      }
+
+      if (oldVersion < INTRODUCED_MESSAGE_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE message_index (_id INTEGER PRIMARY KEY, thread_id INTEGER, normalized_date INTEGER, transport TEXT, msg_id INTEGER, read INTEGER DEFAULT 0);");
+        db.execSQL("INSERT INTO message_index (thread_id, normalized_date, transport, msg_id, read) SELECT thread_id, date, 'sms', _id, read FROM sms;");
+        db.execSQL("INSERT INTO message_index (thread_id, normalized_date, transport, msg_id, read) SELECT thread_id, date_received * 1000, 'mms', _id, read FROM mms;");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS message_index_message_index ON message_index (transport, msg_id);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON message_index (thread_id, normalized_date, msg_id, transport, read);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS message_index_read_thread_index ON message_index (read, thread_id, normalized_date, msg_id, transport);");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS sms_message_index_insert AFTER INSERT ON sms BEGIN INSERT INTO message_index (thread_id, normalized_date, transport, msg_id, read) VALUES (new.thread_id, new.date, 'sms', new._id, new.read); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS sms_message_index_update AFTER UPDATE OF thread_id, date, read ON sms BEGIN UPDATE message_index SET thread_id = new.thread_id, normalized_date = new.date, read = new.read WHERE transport = 'sms' AND msg_id = new._id; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS sms_message_index_delete AFTER DELETE ON sms BEGIN DELETE FROM message_index WHERE transport = 'sms' AND msg_id = old._id; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS mms_message_index_insert AFTER INSERT ON mms BEGIN INSERT INTO message_index (thread_id, normalized_date, transport, msg_id, read) VALUES (new.thread_id, new.date_received * 1000, 'mms', new._id, new.read); END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS mms_message_index_update AFTER UPDATE OF thread_id, date_received, read ON mms BEGIN UPDATE message_index SET thread_id = new.thread_id, normalized_date = new.date_received * 1000, read = new.read WHERE transport = 'mms' AND msg_id = new._id; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS mms_message_index_delete AFTER DELETE ON mms BEGIN DELETE FROM message_index WHERE transport = 'mms' AND msg_id = old._id; END;");
+        db.execSQL("DROP INDEX IF EXISTS sms_thread_date_index;");
+        db.execSQL("DROP INDEX IF EXISTS mms_thread_date_index;");
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE search_postings (token TEXT, first_ref INTEGER, postings BLOB, PRIMARY KEY (token, first_ref));");
+        db.execSQL("CREATE TABLE search_documents (_id INTEGER PRIMARY KEY, tokens TEXT);");
+        db.execSQL("CREATE TABLE search_deletes (_id INTEGER PRIMARY KEY);");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS search_index_delete AFTER DELETE ON message_index BEGIN INSERT OR IGNORE INTO search_deletes SELECT _id FROM search_documents WHERE _id = old._id; END;");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 public class EncryptingPartDatabase extends PartDatabase {
 
@@ -49,6 +50,14 @@ public class EncryptingPartDatabase extends PartDatabase {
     return new DecryptingPartInputStream(path, masterSecret);
   }
 
+  @Override
+  protected long getPartLength(File path, PduPart part) throws IOException {
+    if (!part.getEncrypted())
+      return super.getPartLength(path, part);
+
+    return DecryptingPartInputStream.getPlaintextLength(path, masterSecret);
+  }
+
   @Override
   protected FileOutputStream getPartOutputStream(File path, PduPart part) throws FileNotFoundException {
     Log.w("EncryptingPartDatabase", "Writing part to: " + path.getAbsolutePath());
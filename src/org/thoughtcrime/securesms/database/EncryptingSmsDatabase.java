@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 import android.util.Pair;
@@ -33,7 +34,11 @@ import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.LRUCache;
 
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -58,27 +63,111 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     return ciphertext;
   }
 
+  /**
+   * Called inside the transaction that inserted the messages, so a message
+   * is never stored without its search index entries or vice versa.
+   */
+  private void index(MasterSecret masterSecret, Collection<Long> messageIds, List<String> bodies) {
+    Map<Long, String> documents = new HashMap<Long, String>(bodies.size());
+    Iterator<String>  iterator  = bodies.iterator();
+
+    for (long messageId : messageIds) {
+      documents.put(messageId, iterator.next());
+    }
+
+    DatabaseFactory.getSearchIndexDatabase(context).indexSmsMessages(masterSecret, documents);
+  }
+
   public List<Long> insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                         OutgoingTextMessage message)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
-    type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
-
-    return insertMessageOutbox(threadId, message, type);
+    long   type = Types.BASE_OUTBOX_TYPE;
+    String body = message.getMessageBody();
+    message     = message.withBody(getEncryptedBody(masterSecret, body));
+    type       |= Types.ENCRYPTION_SYMMETRIC_BIT;
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      List<Long> messageIds = insertMessageOutbox(threadId, message, type);
+      index(masterSecret, messageIds, Collections.nCopies(messageIds.size(), body));
+
+      db.setTransactionSuccessful();
+      return messageIds;
+    } finally {
+      db.endTransaction();
+    }
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
                                              IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE;
+    long   type = Types.BASE_INBOX_TYPE;
+    String body = message.getMessageBody();
 
     if (!message.isSecureMessage() && !message.isEndSession()) {
       type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      message = message.withMessageBody(getEncryptedBody(masterSecret, body));
     }
 
-    return insertMessageInbox(message, type);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+
+      if (Types.isSymmetricEncryption(type)) {
+        index(masterSecret, Collections.singletonList(messageAndThreadId.first), Collections.singletonList(body));
+      }
+
+      db.setTransactionSuccessful();
+      return messageAndThreadId;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  public Pair<Long, Long> insertDecryptedMessageInbox(MasterSecret masterSecret,
+                                                      IncomingTextMessage message)
+  {
+    return insertDecryptedMessagesInbox(masterSecret, Collections.singletonList(message)).get(0);
+  }
+
+  /**
+   * Inserts incoming messages whose bodies are already plaintext, either
+   * because they arrived that way or because they've been decrypted, so
+   * that each body is encrypted for storage exactly once.
+   */
+  public List<Pair<Long, Long>> insertDecryptedMessagesInbox(MasterSecret masterSecret,
+                                                             List<IncomingTextMessage> messages)
+  {
+    List<IncomingTextMessage> encryptedMessages = new ArrayList<IncomingTextMessage>(messages.size());
+    List<String>              bodies            = new ArrayList<String>(messages.size());
+
+    for (IncomingTextMessage message : messages) {
+      encryptedMessages.add(message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody())));
+      bodies.add(message.getMessageBody());
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      List<Pair<Long, Long>> results    = insertMessagesInbox(encryptedMessages, Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT);
+      List<Long>             messageIds = new ArrayList<Long>(results.size());
+
+      for (Pair<Long, Long> result : results) {
+        messageIds.add(result.first);
+      }
+
+      index(masterSecret, messageIds, bodies);
+
+      db.setTransactionSuccessful();
+      return results;
+    } finally {
+      db.endTransaction();
+    }
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -102,9 +191,20 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   public void updateMessageBody(MasterSecret masterSecret, long messageId, String body) {
-    String encryptedBody = getEncryptedBody(masterSecret, body);
-    updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
-                             Types.ENCRYPTION_SYMMETRIC_BIT);
+    String         encryptedBody = getEncryptedBody(masterSecret, body);
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
+                               Types.ENCRYPTION_SYMMETRIC_BIT);
+
+      index(masterSecret, Collections.singletonList(messageId), Collections.singletonList(body));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
   }
 
   public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
@@ -371,7 +371,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
         PduHeaders headers     = getHeadersFromCursor(cursor);
         addr.getAddressesForId(messageId, headers);
 
-        PduBody body = getPartsAsBody(partDatabase.getParts(messageId, true));
+        PduBody body = getPartsAsBody(partDatabase.getPartsForSending(messageId));
 
         try {
           if (!Util.isEmpty(messageText) && Types.isSymmetricEncryption(outboxType)) {
@@ -439,7 +439,6 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     Trimmer.trimThread(context, threadId);
 
@@ -591,27 +590,66 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     contentValues.put(PART_COUNT, PartParser.getDisplayablePartCount(body));
 
-    long messageId = db.insert(TABLE_NAME, null, contentValues);
+    long threadId = contentValues.getAsLong(THREAD_ID);
+    long messageId;
+
+    db.beginTransaction();
+
+    try {
+      messageId = db.insert(TABLE_NAME, null, contentValues);
+
+      String snippet = contentValues.getAsString(BODY);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId,
+                                                                 contentValues.getAsLong(DATE_RECEIVED) * 1000,
+                                                                 snippet == null ? "" : snippet,
+                                                                 contentValues.getAsLong(MESSAGE_BOX));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     addressDatabase.insertAddressesForId(messageId, headers);
     partsDatabase.insertParts(messageId, body);
 
-    notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    notifyConversationListeners(threadId);
 
     return messageId;
   }
 
   public void delete(long messageId) {
-    long threadId                   = getThreadIdForMessage(messageId);
+    SQLiteDatabase database         = databaseHelper.getWritableDatabase();
     MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
     PartDatabase partDatabase       = DatabaseFactory.getPartDatabase(context);
+    Cursor cursor                   = null;
+    long threadId;
+    long date;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE,
+                              new String[] {messageId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) return;
+
+      threadId = cursor.getLong(0);
+      date     = cursor.getLong(1) * 1000;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
     partDatabase.deleteParts(messageId);
     addrDatabase.deleteAddressesForId(messageId);
 
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    database.beginTransaction();
+
+    try {
+      database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, date);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
     notifyConversationListeners(threadId);
   }
 
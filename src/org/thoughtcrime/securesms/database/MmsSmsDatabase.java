@@ -20,13 +20,16 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.util.Log;
+import android.util.Pair;
 
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -35,66 +38,259 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  /**
+   * One row per sms and mms message, holding just what conversations are
+   * sorted and filtered by, so those queries are range scans over its
+   * indexes rather than a sort of both tables. The triggers below keep it
+   * in step with sms and mms inside the same transaction as each change.
+   */
+  public  static final String INDEX_TABLE_NAME = "message_index";
+  private static final String INDEX_THREAD_ID  = INDEX_TABLE_NAME + ".thread_id";
+  private static final String INDEX_DATE       = INDEX_TABLE_NAME + ".normalized_date";
+  private static final String INDEX_TRANSPORT  = INDEX_TABLE_NAME + ".transport";
+  private static final String INDEX_MESSAGE_ID = INDEX_TABLE_NAME + ".msg_id";
+  private static final String INDEX_READ       = INDEX_TABLE_NAME + ".read";
+
+  public static final String CREATE_INDEX_TABLE = "CREATE TABLE " + INDEX_TABLE_NAME + " (_id INTEGER PRIMARY KEY, " +
+      "thread_id INTEGER, normalized_date INTEGER, transport TEXT, msg_id INTEGER, read INTEGER DEFAULT 0);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE UNIQUE INDEX IF NOT EXISTS message_index_message_index ON " + INDEX_TABLE_NAME + " (transport, msg_id);",
+    "CREATE INDEX IF NOT EXISTS message_index_thread_date_index ON " + INDEX_TABLE_NAME + " (thread_id, normalized_date, msg_id, transport, read);",
+    "CREATE INDEX IF NOT EXISTS message_index_read_thread_index ON " + INDEX_TABLE_NAME + " (read, thread_id, normalized_date, msg_id, transport);"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS sms_message_index_insert AFTER INSERT ON sms BEGIN " +
+      "INSERT INTO " + INDEX_TABLE_NAME + " (thread_id, normalized_date, transport, msg_id, read) " +
+      "VALUES (new.thread_id, new.date, 'sms', new._id, new.read); END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_message_index_update AFTER UPDATE OF thread_id, date, read ON sms BEGIN " +
+      "UPDATE " + INDEX_TABLE_NAME + " SET thread_id = new.thread_id, normalized_date = new.date, read = new.read " +
+      "WHERE transport = 'sms' AND msg_id = new._id; END;",
+    "CREATE TRIGGER IF NOT EXISTS sms_message_index_delete AFTER DELETE ON sms BEGIN " +
+      "DELETE FROM " + INDEX_TABLE_NAME + " WHERE transport = 'sms' AND msg_id = old._id; END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_index_insert AFTER INSERT ON mms BEGIN " +
+      "INSERT INTO " + INDEX_TABLE_NAME + " (thread_id, normalized_date, transport, msg_id, read) " +
+      "VALUES (new.thread_id, new.date_received * 1000, 'mms', new._id, new.read); END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_index_update AFTER UPDATE OF thread_id, date_received, read ON mms BEGIN " +
+      "UPDATE " + INDEX_TABLE_NAME + " SET thread_id = new.thread_id, normalized_date = new.date_received * 1000, read = new.read " +
+      "WHERE transport = 'mms' AND msg_id = new._id; END;",
+    "CREATE TRIGGER IF NOT EXISTS mms_message_index_delete AFTER DELETE ON mms BEGIN " +
+      "DELETE FROM " + INDEX_TABLE_NAME + " WHERE transport = 'mms' AND msg_id = old._id; END;"
+  };
+
+  private static final String[] MESSAGE_PROJECTION = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
+                                                      MmsSmsColumns.THREAD_ID,
+                                                      SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
+                                                      MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                                      MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                                      MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                                                      SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                                                      MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                                      MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                                                      MmsDatabase.STATUS, TRANSPORT};
+
+  private static final String[] UNREAD_PROJECTION = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
+                                                     SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
+                                                     SmsDatabase.STATUS,
+                                                     MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                                     MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                                     MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                                                     MmsDatabase.PART_COUNT,
+                                                     MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                                     MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                                                     MmsDatabase.STATUS, TRANSPORT};
+
+  private static final Set<String> SMS_COLUMNS = new HashSet<String>(Arrays.asList(
+      MmsSmsColumns.BODY, MmsSmsColumns.ADDRESS, MmsSmsColumns.ADDRESS_DEVICE_ID,
+      SmsDatabase.TYPE, SmsDatabase.SUBJECT, SmsDatabase.STATUS));
+
+  private static final Set<String> MMS_COLUMNS = new HashSet<String>(Arrays.asList(
+      MmsSmsColumns.BODY, MmsSmsColumns.ADDRESS, MmsSmsColumns.ADDRESS_DEVICE_ID,
+      MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX, MmsDatabase.PART_COUNT,
+      MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID, MmsDatabase.MESSAGE_SIZE,
+      MmsDatabase.EXPIRY, MmsDatabase.STATUS));
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public Cursor getConversation(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    Cursor cursor = queryTables(projection, selection, order, null, null);
+    String order     = INDEX_DATE + " ASC, " + INDEX_MESSAGE_ID + " ASC";
+    String selection = INDEX_THREAD_ID + " = " + threadId;
+
+    Cursor cursor = queryTables(MESSAGE_PROJECTION, selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
-  public Cursor getConversationSnippet(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
+  /**
+   * Returns the end of a thread, from <code>windowStart</code> onwards.
+   *
+   * @param windowStart The (date received, id) of the oldest message to include,
+   *                    as returned by {@link #getConversationWindowStart}, or
+   *                    null for the whole thread.
+   */
+  public Cursor getConversation(long threadId, Pair<Long, Long> windowStart) {
+    if (windowStart == null) {
+      return getConversation(threadId);
+    }
+
+    String order     = INDEX_DATE + " ASC, " + INDEX_MESSAGE_ID + " ASC";
+    String selection = getWindowSelection(threadId, ">=", windowStart);
+
+    Cursor cursor = queryTables(MESSAGE_PROJECTION, selection, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Finds where a window covering the last <code>count</code> messages of a
+   * thread before <code>before</code> would start, by walking back along the
+   * message index rather than reading the thread.
+   *
+   * @param before The start of the current window, or null to start from the
+   *               end of the thread.
+   * @return The (date received, id) of the window's oldest message, or null
+   *         if fewer than <code>count</code> messages remain, in which case
+   *         the window should cover the rest of the thread.
+   */
+  public Pair<Long, Long> getConversationWindowStart(long threadId, int count, Pair<Long, Long> before) {
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    String         order     = INDEX_DATE + " DESC, " + INDEX_MESSAGE_ID + " DESC";
+    String         selection;
+    Cursor         cursor    = null;
+
+    if (before == null) selection = INDEX_THREAD_ID + " = " + threadId;
+    else                selection = getWindowSelection(threadId, "<", before);
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {INDEX_DATE, INDEX_MESSAGE_ID}, selection,
+                        null, null, null, order, (count - 1) + ", 1");
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Pair<Long, Long>(cursor.getLong(0), cursor.getLong(1));
+      }
+
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return The number of messages in a thread before <code>before</code>.
+   */
+  public int getConversationCountBefore(long threadId, Pair<Long, Long> before) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {"COUNT(*)"}, getWindowSelection(threadId, "<", before),
+                        null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getInt(0);
+      }
+
+      return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private String getWindowSelection(long threadId, String comparison, Pair<Long, Long> boundary) {
+    return INDEX_THREAD_ID + " = " + threadId + " AND " +
+           "(" + INDEX_DATE + " " + comparison.substring(0, 1) + " " + boundary.first + " OR " +
+           "(" + INDEX_DATE + " = " + boundary.first + " AND " + INDEX_MESSAGE_ID + " " + comparison + " " + boundary.second + "))";
+  }
+
+  /**
+   * @return Whether a message is the one a thread's snippet is taken from,
+   *         i.e. the last in the thread by the order of {@link #getConversationSnippet}.
+   */
+  public boolean isSnippetMessage(long threadId, String transport, long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    String         order  = INDEX_DATE + " DESC, " + INDEX_MESSAGE_ID + " DESC";
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {INDEX_TRANSPORT, INDEX_MESSAGE_ID},
+                        INDEX_THREAD_ID + " = " + threadId, null, null, null, order, "1");
+
+      return cursor != null && cursor.moveToFirst() &&
+             transport.equals(cursor.getString(0)) && cursor.getLong(1) == messageId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
 
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  public Cursor getConversationSnippet(long threadId) {
+    String order     = INDEX_DATE + " DESC, " + INDEX_MESSAGE_ID + " DESC";
+    String selection = INDEX_THREAD_ID + " = " + threadId;
 
-    return  queryTables(projection, selection, order, null, "1");
+    return queryTables(MESSAGE_PROJECTION, selection, order, "1");
   }
 
   public Cursor getUnread() {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.STATUS,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
+    String order     = INDEX_DATE + " ASC, " + INDEX_MESSAGE_ID + " ASC";
+    String selection = INDEX_READ + " = 0";
+
+    return queryTables(UNREAD_PROJECTION, selection, order, null);
+  }
+
+  /**
+   * @return The most recent unread messages in a thread, newest first.
+   */
+  public Cursor getUnread(long threadId, int limit) {
+    String order     = INDEX_DATE + " DESC, " + INDEX_MESSAGE_ID + " DESC";
+    String selection = INDEX_READ + " = 0 AND " + INDEX_THREAD_ID + " = " + threadId;
+
+    return queryTables(UNREAD_PROJECTION, selection, order, String.valueOf(limit));
+  }
+
+  public int getUnreadCount(long threadId) {
+    Map<Long, Integer> counts = getUnreadCounts(INDEX_THREAD_ID + " = " + threadId);
+    Integer            count  = counts.get(threadId);
+
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * @return The number of unread messages in each thread that has any.
+   */
+  public Map<Long, Integer> getUnreadCounts() {
+    return getUnreadCounts(null);
+  }
+
+  private Map<Long, Integer> getUnreadCounts(String threadSelection) {
+    SQLiteDatabase     db        = databaseHelper.getReadableDatabase();
+    Map<Long, Integer> counts    = new HashMap<Long, Integer>();
+    String             selection = INDEX_READ + " = 0";
+    Cursor             cursor    = null;
 
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
+    if (threadSelection != null) {
+      selection += " AND " + threadSelection;
+    }
+
+    try {
+      cursor = db.query(INDEX_TABLE_NAME, new String[] {INDEX_THREAD_ID, "COUNT(*)"}, selection,
+                        null, INDEX_THREAD_ID, null, null);
 
-    return queryTables(projection, selection, order, null, null);
+      while (cursor != null && cursor.moveToNext()) {
+        counts.put(cursor.getLong(0), cursor.getInt(1));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return counts;
   }
 
   public int getConversationCount(long threadId) {
@@ -104,80 +300,69 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
-  private Cursor queryTables(String[] projection, String selection, String order, String groupBy, String limit) {
-    String[] mmsProjection = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              TRANSPORT};
-
-    String[] smsProjection = {SmsDatabase.DATE_SENT + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              SmsDatabase.DATE_RECEIVED + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              TRANSPORT};
-
-
-    SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
-    SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
-
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-
-    Set<String> mmsColumnsPresent = new HashSet<String>();
-    mmsColumnsPresent.add(MmsSmsColumns.ID);
-    mmsColumnsPresent.add(MmsSmsColumns.READ);
-    mmsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.BODY);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_TYPE);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_BOX);
-    mmsColumnsPresent.add(MmsDatabase.DATE_SENT);
-    mmsColumnsPresent.add(MmsDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(MmsDatabase.PART_COUNT);
-    mmsColumnsPresent.add(MmsDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(MmsDatabase.TRANSACTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_SIZE);
-    mmsColumnsPresent.add(MmsDatabase.EXPIRY);
-    mmsColumnsPresent.add(MmsDatabase.STATUS);
-
-    Set<String> smsColumnsPresent = new HashSet<String>();
-    smsColumnsPresent.add(MmsSmsColumns.ID);
-    smsColumnsPresent.add(MmsSmsColumns.BODY);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS_DEVICE_ID);
-    smsColumnsPresent.add(MmsSmsColumns.READ);
-    smsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    smsColumnsPresent.add(SmsDatabase.TYPE);
-    smsColumnsPresent.add(SmsDatabase.SUBJECT);
-    smsColumnsPresent.add(SmsDatabase.DATE_SENT);
-    smsColumnsPresent.add(SmsDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(SmsDatabase.STATUS);
-
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 2, MMS_TRANSPORT, selection, null, null, null);
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 2, SMS_TRANSPORT, selection, null, null, null);
-
-    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
-    String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, null);
-
-    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
-    outerQueryBuilder.setTables("(" + unionQuery + ")");
-
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
+  /**
+   * Selects messages through the message index, joining each index row to
+   * the sms or mms row it points at.
+   *
+   * @param selection A condition on the index table's columns.
+   * @param order An order on the index table's columns, so it follows one of
+   *              its indexes instead of requiring a sort.
+   */
+  private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    StringBuilder query = new StringBuilder("SELECT ");
+
+    for (int i=0;i<projection.length;i++) {
+      if (i != 0) query.append(", ");
+      query.append(getColumnExpression(projection[i])).append(" AS ").append(projection[i]);
+    }
+
+    query.append(" FROM ").append(INDEX_TABLE_NAME)
+         .append(" LEFT JOIN ").append(SmsDatabase.TABLE_NAME).append(" ON ")
+         .append(INDEX_TRANSPORT).append(" = '").append(SMS_TRANSPORT).append("' AND ")
+         .append(SmsDatabase.TABLE_NAME).append("." + MmsSmsColumns.ID + " = ").append(INDEX_MESSAGE_ID)
+         .append(" LEFT JOIN ").append(MmsDatabase.TABLE_NAME).append(" ON ")
+         .append(INDEX_TRANSPORT).append(" = '").append(MMS_TRANSPORT).append("' AND ")
+         .append(MmsDatabase.TABLE_NAME).append("." + MmsSmsColumns.ID + " = ").append(INDEX_MESSAGE_ID)
+         .append(" WHERE ").append(selection)
+         .append(" ORDER BY ").append(order);
+
+    if (limit != null) {
+      query.append(" LIMIT ").append(limit);
+    }
 
     Log.w("MmsSmsDatabase", "Executing query: " + query);
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    return db.rawQuery(query.toString(), null);
+  }
+
+  /**
+   * Only one of the joined sms and mms rows is ever present, so a column
+   * either table has is whichever of the two isn't null.
+   */
+  private String getColumnExpression(String column) {
+    if (column.equals(MmsSmsColumns.ID))                       return INDEX_MESSAGE_ID;
+    if (column.equals(MmsSmsColumns.THREAD_ID))                return INDEX_THREAD_ID;
+    if (column.equals(MmsSmsColumns.READ))                     return INDEX_READ;
+    if (column.equals(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)) return INDEX_DATE;
+    if (column.equals(TRANSPORT))                              return INDEX_TRANSPORT;
+
+    if (column.equals(MmsSmsColumns.NORMALIZED_DATE_SENT)) {
+      return "COALESCE(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_SENT + ", " +
+                           MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + " * 1000)";
+    }
+
+    boolean inSms = SMS_COLUMNS.contains(column);
+    boolean inMms = MMS_COLUMNS.contains(column);
+
+    if (inSms && inMms) {
+      return "COALESCE(" + SmsDatabase.TABLE_NAME + "." + column + ", " + MmsDatabase.TABLE_NAME + "." + column + ")";
+    } else if (inSms) {
+      return SmsDatabase.TABLE_NAME + "." + column;
+    } else if (inMms) {
+      return MmsDatabase.TABLE_NAME + "." + column;
+    } else {
+      return "NULL";
+    }
   }
 
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
@@ -182,6 +182,10 @@ public class PartDatabase extends Database {
     return new FileOutputStream(file);
   }
 
+  protected long getPartLength(File file, PduPart part) throws IOException {
+    return file.length();
+  }
+
   private void readPartData(PduPart part, String filename) {
     try {
       File dataFile              = new File(filename);
@@ -201,25 +205,30 @@ public class PartDatabase extends Database {
     }
   }
 
-  private File writePartData(PduPart part, InputStream in) throws MmsException {
+  private File writePartData(PduPart part, InputStream in) throws IOException {
+    File partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
+    File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
+
     try {
-      File partsDirectory   = context.getDir("parts", Context.MODE_PRIVATE);
-      File dataFile         = File.createTempFile("part", ".mms", partsDirectory);
       FileOutputStream fout = getPartOutputStream(dataFile, part);
 
-      byte[] buf = new byte[512];
-      int read;
+      try {
+        byte[] buf = new byte[4096];
+        int read;
 
-      while ((read = in.read(buf)) != -1) {
-        fout.write(buf, 0, read);
+        while ((read = in.read(buf)) != -1) {
+          fout.write(buf, 0, read);
+        }
+      } finally {
+        fout.close();
       }
 
-      fout.close();
-      in.close();
-
       return dataFile;
     } catch (IOException e) {
-      throw new AssertionError(e);
+      dataFile.delete();
+      throw e;
+    } finally {
+      in.close();
     }
   }
 
@@ -237,6 +246,8 @@ public class PartDatabase extends Database {
       }
     } catch (FileNotFoundException e) {
       throw new AssertionError(e);
+    } catch (IOException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -298,6 +309,30 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * @return The length of a part's data once decrypted.
+   */
+  public long getPartSize(long partId) throws IOException {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor cursor           = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[]{DATA, ENCRYPTED}, ID_WHERE, new String[] {partId+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        PduPart part = new PduPart();
+        part.setEncrypted(cursor.getInt(1) == 1);
+
+        return getPartLength(new File(cursor.getString(0)), part);
+      } else {
+        throw new FileNotFoundException("No part data for id: " + partId);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   void insertParts(long mmsId, PduBody body) throws MmsException {
     for (int i=0;i<body.getPartsNum();i++) {
       long partId = insertPart(body.getPart(i), mmsId);
@@ -305,8 +340,13 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Streams a downloaded part straight into its final file. The row is only
+   * updated once the whole stream has been read successfully, so a failed
+   * or tampered download leaves the part pending and no file behind.
+   */
   public void updateDownloadedPart(long messageId, long partId, PduPart part, InputStream data)
-      throws MmsException
+      throws MmsException, IOException
   {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     File           partData = writePartData(part, data);
@@ -378,6 +418,41 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Like {@link #getParts(long, boolean)}, but leaves out the data of media
+   * parts, which whoever sends them can stream from {@link #getPartStream(long)}.
+   */
+  public List<Pair<Long, PduPart>> getPartsForSending(long mmsId) {
+    SQLiteDatabase            database = databaseHelper.getReadableDatabase();
+    List<Pair<Long, PduPart>> results  = new LinkedList<Pair<Long, PduPart>>();
+    Cursor                    cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, null, MMS_ID + " = ?", new String[] {mmsId+""}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        PduPart part        = getPart(cursor, false);
+        String  contentType = Util.toIsoString(part.getContentType());
+
+        if (!part.isPendingPush()                &&
+            !ContentType.isImageType(contentType) &&
+            !ContentType.isAudioType(contentType) &&
+            !ContentType.isVideoType(contentType))
+        {
+          readPartData(part, cursor.getString(cursor.getColumnIndexOrThrow(DATA)));
+        }
+
+        results.add(new Pair<Long, PduPart>(cursor.getLong(cursor.getColumnIndexOrThrow(ID)),
+                                            part));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public List<Pair<Long, Pair<Long, PduPart>>> getPushPendingParts() {
     SQLiteDatabase                        database = databaseHelper.getReadableDatabase();
     List<Pair<Long, Pair<Long, PduPart>>> results  = new LinkedList<Pair<Long, Pair<Long, PduPart>>>();
@@ -420,6 +495,7 @@ public class PartDatabase extends Database {
     }
 
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
+    DatabaseFactory.getPushTransferDatabase(context).deleteTransfers(mmsId);
   }
 
   public void deleteAllParts() {
@@ -432,5 +508,7 @@ public class PartDatabase extends Database {
     for (int i=0;i<parts.length;i++) {
       parts[i].delete();
     }
+
+    DatabaseFactory.getPushTransferDatabase(context).deleteAllTransfers();
   }
 }
@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import org.whispersystems.textsecure.push.IncomingPushMessage;
@@ -48,6 +49,21 @@ public class PushDatabase extends Database {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
 
+  public void delete(List<Long> ids) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      for (long id : ids) {
+        database.delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   public Reader readerFor(Cursor cursor) {
     return new Reader(cursor);
   }
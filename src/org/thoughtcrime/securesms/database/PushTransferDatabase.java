@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.io.File;
+
+/**
+ * Tracks push attachment downloads that are in progress, so that an
+ * interrupted transfer can pick up where it left off.
+ *
+ * The ciphertext received so far is kept in a partial file for each part.
+ * The recorded offset is only advanced once the bytes before it have been
+ * synced to disk, so it's always safe to resume from.
+ */
+public class PushTransferDatabase extends Database {
+
+  private static final String TABLE_NAME   = "push_transfers";
+  public  static final String ID           = "_id";
+  public  static final String PART_ID      = "part_id";
+  public  static final String MMS_ID       = "mms_id";
+  public  static final String OFFSET       = "transfer_offset";
+  public  static final String ATTEMPTS     = "attempts";
+  public  static final String NEXT_ATTEMPT = "next_attempt";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      PART_ID + " INTEGER UNIQUE, " + MMS_ID + " INTEGER, " + OFFSET + " INTEGER DEFAULT 0, " +
+      ATTEMPTS + " INTEGER DEFAULT 0, " + NEXT_ATTEMPT + " INTEGER DEFAULT 0);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS push_transfers_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
+  };
+
+  private static final String PART_ID_WHERE = PART_ID + " = ?";
+
+  private static final long MIN_BACKOFF_MILLIS = 30 * 1000;
+  private static final long MAX_BACKOFF_MILLIS = 6 * 60 * 60 * 1000;
+
+  public PushTransferDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public File getPartialFile(long partId) {
+    return new File(context.getDir("transfers", Context.MODE_PRIVATE), partId + ".part");
+  }
+
+  public long getOffset(long partId) {
+    return getLong(partId, OFFSET);
+  }
+
+  public int getAttempts(long partId) {
+    return (int)getLong(partId, ATTEMPTS);
+  }
+
+  public long getNextAttempt(long partId) {
+    return getLong(partId, NEXT_ATTEMPT);
+  }
+
+  public void setOffset(long partId, long mmsId, long offset) {
+    ContentValues values = new ContentValues(1);
+    values.put(OFFSET, offset);
+
+    updateOrInsert(partId, mmsId, values);
+  }
+
+  /**
+   * Records a failed attempt, backing off exponentially between retries.
+   *
+   * @return The time after which the transfer should be retried.
+   */
+  public long recordFailure(long partId, long mmsId) {
+    int  attempts    = (int)getLong(partId, ATTEMPTS) + 1;
+    long backoff     = MIN_BACKOFF_MILLIS << Math.min(attempts - 1, 16);
+    long nextAttempt = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF_MILLIS);
+
+    ContentValues values = new ContentValues(2);
+    values.put(ATTEMPTS, attempts);
+    values.put(NEXT_ATTEMPT, nextAttempt);
+
+    updateOrInsert(partId, mmsId, values);
+
+    return nextAttempt;
+  }
+
+  public void delete(long partId) {
+    getPartialFile(partId).delete();
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, PART_ID_WHERE, new String[] {partId+""});
+  }
+
+  public void deleteTransfers(long mmsId) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {PART_ID}, MMS_ID + " = ?",
+                              new String[] {mmsId+""}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        getPartialFile(cursor.getLong(0)).delete();
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId+""});
+  }
+
+  public void deleteAllTransfers() {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
+
+    File   transfersDirectory = context.getDir("transfers", Context.MODE_PRIVATE);
+    File[] partialFiles       = transfersDirectory.listFiles();
+
+    if (partialFiles != null) {
+      for (File partialFile : partialFiles) {
+        partialFile.delete();
+      }
+    }
+  }
+
+  private long getLong(long partId, String column) {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {column}, PART_ID_WHERE,
+                                                          new String[] {partId+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+
+      return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private void updateOrInsert(long partId, long mmsId, ContentValues values) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    if (database.update(TABLE_NAME, values, PART_ID_WHERE, new String[] {partId+""}) == 0) {
+      values.put(PART_ID, partId);
+      values.put(MMS_ID, mmsId);
+      database.insert(TABLE_NAME, null, values);
+    }
+  }
+
+}
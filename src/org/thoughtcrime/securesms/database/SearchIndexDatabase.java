@@ -0,0 +1,757 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.whispersystems.textsecure.crypto.CryptoPrimitives;
+import org.whispersystems.textsecure.crypto.InvalidMessageException;
+import org.whispersystems.textsecure.crypto.MasterCipher;
+import org.whispersystems.textsecure.crypto.MasterSecret;
+import org.whispersystems.textsecure.util.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An inverted index over the bodies of stored text messages, so they can be
+ * searched without decrypting every message in the database.
+ *
+ * Nothing here is stored in the clear. Each word is replaced by an HMAC
+ * keyed with a secret derived from the master secret, and the index maps
+ * those tokens to the messages containing them. A message is referred to by
+ * its row in the message index, and each token's references are kept sorted
+ * and split into blocks of delta-encoded varints, so adding or removing a
+ * message only rewrites the one block it falls in for each of its words.
+ *
+ * Messages are indexed as they're stored. Deletions are queued by a trigger
+ * and applied before the index is next written or read, and anything stored
+ * before the index existed is picked up by {@link #scheduleBackfill}.
+ */
+public class SearchIndexDatabase extends Database {
+
+  private static final String TAG = SearchIndexDatabase.class.getSimpleName();
+
+  private static final String POSTINGS_TABLE  = "search_postings";
+  private static final String DOCUMENTS_TABLE = "search_documents";
+  private static final String DELETES_TABLE   = "search_deletes";
+
+  private static final String ID        = "_id";
+  private static final String TOKEN     = "token";
+  private static final String FIRST_REF = "first_ref";
+  private static final String POSTINGS  = "postings";
+  private static final String TOKENS    = "tokens";
+
+  public static final String[] CREATE_TABLES = {
+    "CREATE TABLE " + POSTINGS_TABLE + " (" + TOKEN + " TEXT, " + FIRST_REF + " INTEGER, " +
+        POSTINGS + " BLOB, PRIMARY KEY (" + TOKEN + ", " + FIRST_REF + "));",
+    "CREATE TABLE " + DOCUMENTS_TABLE + " (" + ID + " INTEGER PRIMARY KEY, " + TOKENS + " TEXT);",
+    "CREATE TABLE " + DELETES_TABLE + " (" + ID + " INTEGER PRIMARY KEY);"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS search_index_delete AFTER DELETE ON " + MmsSmsDatabase.INDEX_TABLE_NAME + " BEGIN " +
+      "INSERT OR IGNORE INTO " + DELETES_TABLE + " SELECT " + ID + " FROM " + DOCUMENTS_TABLE +
+      " WHERE " + ID + " = old._id; END;"
+  };
+
+  private static final int    BLOCK_SIZE          = 256;
+  private static final int    TOKEN_SIZE          = 16;
+  private static final int    MAX_WORD_LENGTH     = 64;
+  private static final int    BATCH_SIZE          = 500;
+  private static final long   NEW_BLOCK           = -1;
+  private static final String TOKEN_KEY_LABEL     = "TextSecure Search Index";
+
+  private static final ExecutorService backfillExecutor = Executors.newSingleThreadExecutor();
+
+  private MasterSecret  tokenKeySecret;
+  private SecretKeySpec tokenKey;
+
+  public SearchIndexDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Indexes (or re-indexes) stored text messages.
+   *
+   * @param bodies The plaintext bodies, keyed by sms message id.
+   */
+  public void indexSmsMessages(MasterSecret masterSecret, Map<Long, String> bodies) {
+    if (bodies.isEmpty()) return;
+
+    Map<Long, Set<String>> documents = new HashMap<Long, Set<String>>(bodies.size());
+    Map<Long, Long>        refs      = getSmsRefs(bodies.keySet());
+
+    for (Map.Entry<Long, Long> ref : refs.entrySet()) {
+      documents.put(ref.getValue(), getTokens(masterSecret, bodies.get(ref.getKey())));
+    }
+
+    writeDocuments(documents);
+  }
+
+  /**
+   * @return The ids of every thread with a message containing all the words in
+   *         <code>query</code>.
+   */
+  public Set<Long> getMatchingThreadIds(MasterSecret masterSecret, String query) {
+    Set<String> tokens = getTokens(masterSecret, query);
+
+    if (tokens.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    processPendingDeletes();
+
+    SQLiteDatabase db       = databaseHelper.getReadableDatabase();
+    List<long[]>   postings = new ArrayList<long[]>(tokens.size());
+
+    for (String token : tokens) {
+      postings.add(getPostings(db, token));
+    }
+
+    Collections.sort(postings, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] lhs, long[] rhs) {
+        return lhs.length - rhs.length;
+      }
+    });
+
+    long[] matches = postings.get(0);
+
+    for (int i=1;i<postings.size() && matches.length > 0;i++) {
+      matches = intersect(matches, postings.get(i));
+    }
+
+    return getThreadIds(db, matches);
+  }
+
+  /**
+   * Indexes, in the background, any stored messages that aren't indexed yet,
+   * newest first.
+   */
+  public void scheduleBackfill(final MasterSecret masterSecret) {
+    backfillExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          backfill(masterSecret);
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+        }
+      }
+    });
+  }
+
+  private void backfill(MasterSecret masterSecret) {
+    MasterCipher masterCipher = new MasterCipher(masterSecret);
+    long         before       = Long.MAX_VALUE;
+    int          indexed      = 0;
+
+    while (true) {
+      Map<Long, Set<String>> documents = new HashMap<Long, Set<String>>();
+      Cursor                 cursor    = null;
+
+      try {
+        cursor = databaseHelper.getReadableDatabase().rawQuery(
+            "SELECT i._id, s." + SmsDatabase.TYPE + ", s." + SmsDatabase.BODY +
+            " FROM " + MmsSmsDatabase.INDEX_TABLE_NAME + " i" +
+            " JOIN " + SmsDatabase.TABLE_NAME + " s ON s." + SmsDatabase.ID + " = i.msg_id" +
+            " WHERE i.transport = 'sms' AND i._id < ?" +
+            " AND NOT EXISTS (SELECT 1 FROM " + DOCUMENTS_TABLE + " d WHERE d." + ID + " = i._id)" +
+            " ORDER BY i._id DESC LIMIT " + BATCH_SIZE,
+            new String[] {String.valueOf(before)});
+
+        if (cursor == null || cursor.getCount() == 0) {
+          break;
+        }
+
+        while (cursor.moveToNext()) {
+          long   ref  = cursor.getLong(0);
+          long   type = cursor.getLong(1);
+          String body = cursor.getString(2);
+
+          before = ref;
+
+          if (isSearchable(type)) {
+            try {
+              documents.put(ref, getTokens(masterSecret, masterCipher.decryptBody(body)));
+            } catch (InvalidMessageException e) {
+              Log.w(TAG, e);
+              documents.put(ref, Collections.<String>emptySet());
+            }
+          } else if (!SmsDatabase.Types.isDecryptInProgressType(type)) {
+            documents.put(ref, Collections.<String>emptySet());
+          }
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      writeDocuments(documents);
+      indexed += documents.size();
+    }
+
+    Log.w(TAG, "Backfilled " + indexed + " messages.");
+  }
+
+  private Map<Long, Long> getSmsRefs(Collection<Long> messageIds) {
+    Map<Long, Long> refs   = new HashMap<Long, Long>(messageIds.size());
+    List<Long>      ids    = new ArrayList<Long>(messageIds);
+    SQLiteDatabase  db     = databaseHelper.getReadableDatabase();
+
+    for (int i=0;i<ids.size();i+=BATCH_SIZE) {
+      List<Long> batch  = ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE));
+      Cursor     cursor = null;
+
+      try {
+        cursor = db.rawQuery("SELECT i._id, i.msg_id, s." + SmsDatabase.TYPE +
+                             " FROM " + MmsSmsDatabase.INDEX_TABLE_NAME + " i" +
+                             " JOIN " + SmsDatabase.TABLE_NAME + " s ON s." + SmsDatabase.ID + " = i.msg_id" +
+                             " WHERE i.transport = 'sms' AND i.msg_id IN (" + join(batch) + ")", null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          if (isSearchable(cursor.getLong(2))) {
+            refs.put(cursor.getLong(1), cursor.getLong(0));
+          }
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    return refs;
+  }
+
+  private void writeDocuments(Map<Long, Set<String>> documents) {
+    if (documents.isEmpty()) return;
+
+    processPendingDeletes();
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      // A message deleted since it was read would otherwise leave a document
+      // behind that nothing will ever remove.
+      Set<Long>                    live    = getLiveRefs(db, documents.keySet());
+      Map<Long, Set<String>>       current = getDocuments(db, documents.keySet());
+      Map<String, BlockChanges>    changes = new HashMap<String, BlockChanges>();
+
+      for (Map.Entry<Long, Set<String>> document : current.entrySet()) {
+        for (String token : document.getValue()) {
+          getChanges(changes, token).removed.add(document.getKey());
+        }
+      }
+
+      for (Map.Entry<Long, Set<String>> document : documents.entrySet()) {
+        if (!live.contains(document.getKey())) continue;
+
+        for (String token : document.getValue()) {
+          getChanges(changes, token).added.add(document.getKey());
+        }
+      }
+
+      for (Map.Entry<String, BlockChanges> change : changes.entrySet()) {
+        updatePostings(db, change.getKey(), change.getValue());
+      }
+
+      for (Map.Entry<Long, Set<String>> document : documents.entrySet()) {
+        if (!live.contains(document.getKey())) continue;
+
+        ContentValues values = new ContentValues(2);
+        values.put(ID, document.getKey());
+        values.put(TOKENS, joinTokens(document.getValue()));
+
+        db.replace(DOCUMENTS_TABLE, null, values);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void processPendingDeletes() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    while (true) {
+      db.beginTransaction();
+
+      try {
+        List<Long> refs   = new LinkedList<Long>();
+        Cursor     cursor = null;
+
+        try {
+          cursor = db.query(DELETES_TABLE, new String[] {ID}, null, null, null, null, null,
+                            String.valueOf(BATCH_SIZE));
+
+          while (cursor != null && cursor.moveToNext()) {
+            refs.add(cursor.getLong(0));
+          }
+        } finally {
+          if (cursor != null)
+            cursor.close();
+        }
+
+        if (refs.isEmpty()) {
+          db.setTransactionSuccessful();
+          return;
+        }
+
+        Map<String, BlockChanges> changes = new HashMap<String, BlockChanges>();
+
+        for (Map.Entry<Long, Set<String>> document : getDocuments(db, refs).entrySet()) {
+          for (String token : document.getValue()) {
+            getChanges(changes, token).removed.add(document.getKey());
+          }
+        }
+
+        for (Map.Entry<String, BlockChanges> change : changes.entrySet()) {
+          updatePostings(db, change.getKey(), change.getValue());
+        }
+
+        String ids = join(refs);
+        db.delete(DOCUMENTS_TABLE, ID + " IN (" + ids + ")", null);
+        db.delete(DELETES_TABLE, ID + " IN (" + ids + ")", null);
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Applies a token's additions and removals, rewriting only the blocks they
+   * fall in. A reference belongs to the last block starting at or before it,
+   * or to the first block if it precedes them all.
+   */
+  private void updatePostings(SQLiteDatabase db, String token, BlockChanges changes) {
+    long[]                    blockStarts = getBlockStarts(db, token);
+    Map<Long, BlockChanges>   blocks      = new HashMap<Long, BlockChanges>();
+
+    for (long ref : changes.removed) {
+      getChanges(blocks, getBlockStart(blockStarts, ref)).removed.add(ref);
+    }
+
+    for (long ref : changes.added) {
+      getChanges(blocks, getBlockStart(blockStarts, ref)).added.add(ref);
+    }
+
+    for (Map.Entry<Long, BlockChanges> block : blocks.entrySet()) {
+      long          blockStart = block.getKey();
+      TreeSet<Long> refs       = new TreeSet<Long>();
+
+      if (blockStart != NEW_BLOCK) {
+        String[] args = new String[] {token, String.valueOf(blockStart)};
+        Cursor   cursor = null;
+
+        try {
+          cursor = db.query(POSTINGS_TABLE, new String[] {POSTINGS}, TOKEN + " = ? AND " + FIRST_REF + " = ?",
+                            args, null, null, null);
+
+          if (cursor != null && cursor.moveToFirst()) {
+            for (long ref : decodePostings(cursor.getBlob(0))) {
+              refs.add(ref);
+            }
+          }
+        } finally {
+          if (cursor != null)
+            cursor.close();
+        }
+
+        db.delete(POSTINGS_TABLE, TOKEN + " = ? AND " + FIRST_REF + " = ?", args);
+      }
+
+      refs.removeAll(block.getValue().removed);
+      refs.addAll(block.getValue().added);
+
+      writeBlocks(db, token, refs);
+    }
+  }
+
+  private void writeBlocks(SQLiteDatabase db, String token, TreeSet<Long> refs) {
+    Iterator<Long> iterator = refs.iterator();
+
+    while (iterator.hasNext()) {
+      long[] block = new long[Math.min(BLOCK_SIZE, refs.size())];
+      int    count = 0;
+
+      while (count < block.length && iterator.hasNext()) {
+        block[count++] = iterator.next();
+      }
+
+      ContentValues values = new ContentValues(3);
+      values.put(TOKEN, token);
+      values.put(FIRST_REF, block[0]);
+      values.put(POSTINGS, encodePostings(block, count));
+
+      db.insert(POSTINGS_TABLE, null, values);
+    }
+  }
+
+  private long[] getBlockStarts(SQLiteDatabase db, String token) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(POSTINGS_TABLE, new String[] {FIRST_REF}, TOKEN + " = ?", new String[] {token},
+                        null, null, FIRST_REF + " ASC");
+
+      long[] blockStarts = new long[cursor == null ? 0 : cursor.getCount()];
+
+      for (int i=0;i<blockStarts.length && cursor.moveToNext();i++) {
+        blockStarts[i] = cursor.getLong(0);
+      }
+
+      return blockStarts;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private long getBlockStart(long[] blockStarts, long ref) {
+    if (blockStarts.length == 0) {
+      return NEW_BLOCK;
+    }
+
+    int index = Arrays.binarySearch(blockStarts, ref);
+
+    if (index >= 0)  return blockStarts[index];
+    if (index == -1) return blockStarts[0];
+
+    return blockStarts[-index - 2];
+  }
+
+  private long[] getPostings(SQLiteDatabase db, String token) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(POSTINGS_TABLE, new String[] {POSTINGS}, TOKEN + " = ?", new String[] {token},
+                        null, null, FIRST_REF + " ASC");
+
+      List<long[]> blocks = new LinkedList<long[]>();
+      int          total  = 0;
+
+      while (cursor != null && cursor.moveToNext()) {
+        long[] block = decodePostings(cursor.getBlob(0));
+        blocks.add(block);
+        total += block.length;
+      }
+
+      long[] postings = new long[total];
+      int    offset   = 0;
+
+      for (long[] block : blocks) {
+        System.arraycopy(block, 0, postings, offset, block.length);
+        offset += block.length;
+      }
+
+      return postings;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private Set<Long> getThreadIds(SQLiteDatabase db, long[] refs) {
+    Set<Long> threadIds = new HashSet<Long>();
+
+    for (int i=0;i<refs.length;i+=BATCH_SIZE) {
+      StringBuilder ids    = new StringBuilder();
+      Cursor        cursor = null;
+
+      for (int j=i;j<Math.min(refs.length, i + BATCH_SIZE);j++) {
+        if (j != i) ids.append(',');
+        ids.append(refs[j]);
+      }
+
+      try {
+        cursor = db.rawQuery("SELECT DISTINCT thread_id FROM " + MmsSmsDatabase.INDEX_TABLE_NAME +
+                             " WHERE _id IN (" + ids + ")", null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          threadIds.add(cursor.getLong(0));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+    }
+
+    return threadIds;
+  }
+
+  private Set<Long> getLiveRefs(SQLiteDatabase db, Collection<Long> refs) {
+    Set<Long> live   = new HashSet<Long>(refs.size());
+    Cursor    cursor = null;
+
+    try {
+      cursor = db.rawQuery("SELECT _id FROM " + MmsSmsDatabase.INDEX_TABLE_NAME +
+                           " WHERE _id IN (" + join(refs) + ")", null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        live.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return live;
+  }
+
+  private Map<Long, Set<String>> getDocuments(SQLiteDatabase db, Collection<Long> refs) {
+    Map<Long, Set<String>> documents = new HashMap<Long, Set<String>>();
+    Cursor                 cursor    = null;
+
+    try {
+      cursor = db.query(DOCUMENTS_TABLE, new String[] {ID, TOKENS}, ID + " IN (" + join(refs) + ")",
+                        null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String      tokens   = cursor.getString(1);
+        Set<String> document = new HashSet<String>();
+
+        if (tokens != null && tokens.length() > 0) {
+          document.addAll(Arrays.asList(tokens.split(" ")));
+        }
+
+        documents.put(cursor.getLong(0), document);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return documents;
+  }
+
+  /**
+   * Splits text into lower case words and replaces each with its keyed
+   * token, so the same word always maps to the same token for one master
+   * secret and can't be recognized without it.
+   */
+  private Set<String> getTokens(MasterSecret masterSecret, String text) {
+    Set<String> words  = getWords(text);
+    Set<String> tokens = new HashSet<String>(words.size());
+
+    if (words.isEmpty()) {
+      return tokens;
+    }
+
+    try {
+      Mac mac = CryptoPrimitives.getHmacSha256();
+      mac.init(getTokenKey(masterSecret));
+
+      for (String word : words) {
+        byte[] digest = mac.doFinal(word.getBytes("UTF-8"));
+        tokens.add(Hex.toStringCondensed(Arrays.copyOf(digest, TOKEN_SIZE)));
+      }
+
+      return tokens;
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Forgets the token key, which is derived from the master secret, so it
+   * doesn't outlive the lock.
+   */
+  public synchronized void clearTokenKey() {
+    tokenKey       = null;
+    tokenKeySecret = null;
+  }
+
+  private synchronized SecretKeySpec getTokenKey(MasterSecret masterSecret) {
+    if (tokenKeySecret != masterSecret) {
+      try {
+        Mac mac = CryptoPrimitives.getHmacSha256();
+        mac.init(new SecretKeySpec(masterSecret.getMacKey().getEncoded(), "HmacSHA256"));
+
+        tokenKey       = new SecretKeySpec(mac.doFinal(TOKEN_KEY_LABEL.getBytes()), "HmacSHA256");
+        tokenKeySecret = masterSecret;
+      } catch (InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    return tokenKey;
+  }
+
+  private static Set<String> getWords(String text) {
+    Set<String>   words = new HashSet<String>();
+    StringBuilder word  = new StringBuilder();
+
+    if (text == null) {
+      return words;
+    }
+
+    for (int i=0;i<=text.length();i++) {
+      char character = i < text.length() ? text.charAt(i) : ' ';
+
+      if (Character.isLetterOrDigit(character)) {
+        word.append(Character.toLowerCase(character));
+      } else if (word.length() > 0) {
+        if (word.length() <= MAX_WORD_LENGTH) {
+          words.add(word.toString());
+        }
+
+        word.setLength(0);
+      }
+    }
+
+    return words;
+  }
+
+  private static boolean isSearchable(long type) {
+    return SmsDatabase.Types.isSymmetricEncryption(type)   &&
+           !SmsDatabase.Types.isKeyExchangeType(type)      &&
+           !SmsDatabase.Types.isGroupUpdate(type)          &&
+           !SmsDatabase.Types.isGroupQuit(type)            &&
+           !SmsDatabase.Types.isEndSessionType(type)       &&
+           !SmsDatabase.Types.isFailedDecryptType(type)    &&
+           !SmsDatabase.Types.isNoRemoteSessionType(type)  &&
+           !SmsDatabase.Types.isDecryptInProgressType(type);
+  }
+
+  private static long[] intersect(long[] lhs, long[] rhs) {
+    long[] results = new long[Math.min(lhs.length, rhs.length)];
+    int    count   = 0;
+
+    for (int i=0, j=0;i<lhs.length && j<rhs.length;) {
+      if      (lhs[i] < rhs[j]) i++;
+      else if (lhs[i] > rhs[j]) j++;
+      else                      {results[count++] = lhs[i]; i++; j++;}
+    }
+
+    return Arrays.copyOf(results, count);
+  }
+
+  /**
+   * Encodes sorted references as the gaps between them, each written as a
+   * little-endian base 128 varint, so that dense postings take a byte apiece.
+   */
+  private static byte[] encodePostings(long[] refs, int count) {
+    ByteArrayOutputStream out      = new ByteArrayOutputStream(count * 2);
+    long                  previous = 0;
+
+    for (int i=0;i<count;i++) {
+      long delta = refs[i] - previous;
+      previous   = refs[i];
+
+      while ((delta & ~0x7FL) != 0) {
+        out.write((int)((delta & 0x7F) | 0x80));
+        delta >>>= 7;
+      }
+
+      out.write((int)delta);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static long[] decodePostings(byte[] encoded) {
+    long[] refs     = new long[encoded.length];
+    int    count    = 0;
+    long   previous = 0;
+    long   delta    = 0;
+    int    shift    = 0;
+
+    for (byte b : encoded) {
+      delta |= (long)(b & 0x7F) << shift;
+
+      if ((b & 0x80) != 0) {
+        shift += 7;
+      } else {
+        previous     += delta;
+        refs[count++] = previous;
+        delta         = 0;
+        shift         = 0;
+      }
+    }
+
+    return Arrays.copyOf(refs, count);
+  }
+
+  private static <K> BlockChanges getChanges(Map<K, BlockChanges> changes, K key) {
+    BlockChanges change = changes.get(key);
+
+    if (change == null) {
+      change = new BlockChanges();
+      changes.put(key, change);
+    }
+
+    return change;
+  }
+
+  private static String joinTokens(Set<String> tokens) {
+    StringBuilder builder = new StringBuilder();
+
+    for (String token : tokens) {
+      if (builder.length() > 0) builder.append(' ');
+      builder.append(token);
+    }
+
+    return builder.toString();
+  }
+
+  private static String join(Collection<Long> ids) {
+    StringBuilder builder = new StringBuilder();
+
+    for (long id : ids) {
+      if (builder.length() > 0) builder.append(',');
+      builder.append(id);
+    }
+
+    return builder.toString();
+  }
+
+  private static class BlockChanges {
+    private final Set<Long> added   = new HashSet<Long>();
+    private final Set<Long> removed = new HashSet<Long>();
+  }
+}
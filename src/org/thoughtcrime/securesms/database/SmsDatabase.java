@@ -39,8 +39,14 @@ import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.Trimmer;
 import org.whispersystems.textsecure.util.Util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -95,9 +101,8 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
                " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                " WHERE " + ID + " = ?", new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
+    long threadId = updateThreadForChange(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -121,6 +126,36 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     }
   }
 
+  /**
+   * Updates the thread's snippet in case it came from this message.
+   *
+   * @return The message's thread.
+   */
+  private long updateThreadForChange(long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, BODY, TYPE}, ID_WHERE,
+                        new String[] {messageId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) {
+        return -1;
+      }
+
+      long threadId = cursor.getLong(0);
+
+      DatabaseFactory.getThreadDatabase(context)
+                     .updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId,
+                                      cursor.getString(1), cursor.getLong(2));
+
+      return threadId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public int getMessageCount() {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -241,14 +276,102 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
                "WHERE " + ID + " = ?",
                new String[] {body, messageId+""});
 
-    long threadId = getThreadIdForMessage(messageId);
+    long threadId = updateThreadForChange(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
 
   protected Pair<Long, Long> insertMessageInbox(IncomingTextMessage message, long type) {
+    return insertMessagesInbox(Collections.singletonList(message), type).get(0);
+  }
+
+  /**
+   * Inserts a burst of incoming messages in a single transaction. Each
+   * thread they land in has its snippet and count updated, and its
+   * listeners notified, once for the whole burst rather than per message.
+   */
+  protected List<Pair<Long, Long>> insertMessagesInbox(List<IncomingTextMessage> messages, long baseType) {
+    List<ContentValues>      rows          = new ArrayList<ContentValues>(messages.size());
+    Map<String, Long>        threadIds     = new HashMap<String, Long>();
+    Map<Long, ContentValues> newestRows    = new LinkedHashMap<Long, ContentValues>();
+    Map<Long, Integer>       insertCounts  = new HashMap<Long, Integer>();
+    Set<Long>                unreadThreads = new HashSet<Long>();
+
+    for (IncomingTextMessage message : messages) {
+      long    type     = getInboxType(message, baseType);
+      long    threadId = getInboxThreadId(message, threadIds);
+      boolean unread   = org.thoughtcrime.securesms.util.Util.isDefaultSmsProvider(context) ||
+                         message.isSecureMessage() || message.isKeyExchange();
+
+      ContentValues values = new ContentValues(12);
+      values.put(ADDRESS, message.getSender());
+      values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
+      values.put(DATE_RECEIVED, System.currentTimeMillis());
+      values.put(DATE_SENT, message.getSentTimestampMillis());
+      values.put(PROTOCOL, message.getProtocol());
+      values.put(READ, unread ? 0 : 1);
+
+      if (!Util.isEmpty(message.getPseudoSubject()))
+        values.put(SUBJECT, message.getPseudoSubject());
+
+      values.put(REPLY_PATH_PRESENT, message.isReplyPathPresent());
+      values.put(SERVICE_CENTER, message.getServiceCenterAddress());
+      values.put(BODY, message.getMessageBody());
+      values.put(TYPE, type);
+      values.put(THREAD_ID, threadId);
+
+      if (unread) unreadThreads.add(threadId);
+
+      rows.add(values);
+    }
+
+    SQLiteDatabase         db             = databaseHelper.getWritableDatabase();
+    ThreadDatabase         threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    List<Pair<Long, Long>> results        = new ArrayList<Pair<Long, Long>>(rows.size());
+
+    db.beginTransaction();
+
+    try {
+      for (ContentValues values : rows) {
+        long          threadId = values.getAsLong(THREAD_ID);
+        ContentValues newest   = newestRows.get(threadId);
+        Integer       count    = insertCounts.get(threadId);
+
+        results.add(new Pair<Long, Long>(db.insert(TABLE_NAME, null, values), threadId));
+
+        if (newest == null || newest.getAsLong(DATE_RECEIVED) <= values.getAsLong(DATE_RECEIVED)) {
+          newestRows.put(threadId, values);
+        }
+
+        insertCounts.put(threadId, count == null ? 1 : count + 1);
+      }
+
+      for (Map.Entry<Long, ContentValues> entry : newestRows.entrySet()) {
+        ContentValues newest = entry.getValue();
+        threadDatabase.updateForInsert(entry.getKey(), newest.getAsLong(DATE_RECEIVED),
+                                       newest.getAsString(BODY), newest.getAsLong(TYPE),
+                                       insertCounts.get(entry.getKey()));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (long threadId : newestRows.keySet()) {
+      if (unreadThreads.contains(threadId)) {
+        threadDatabase.setUnread(threadId);
+      }
+
+      notifyConversationListeners(threadId);
+      Trimmer.trimThread(context, threadId);
+    }
+
+    return results;
+  }
+
+  private long getInboxType(IncomingTextMessage message, long type) {
     if (message.isKeyExchange()) {
       type |= Types.KEY_EXCHANGE_BIT;
       if      (((IncomingKeyExchangeMessage)message).isStale())          type |= Types.KEY_EXCHANGE_STALE_BIT;
@@ -259,7 +382,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       else if (((IncomingKeyExchangeMessage)message).isIdentityUpdate()) type |= Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT;
     } else if (message.isSecureMessage()) {
       type |= Types.SECURE_MESSAGE_BIT;
-      type |= Types.ENCRYPTION_REMOTE_BIT;
+      if (!Types.isSymmetricEncryption(type)) type |= Types.ENCRYPTION_REMOTE_BIT;
     } else if (message.isGroup()) {
       type |= Types.SECURE_MESSAGE_BIT;
       if      (((IncomingGroupMessage)message).isUpdate()) type |= Types.GROUP_UPDATE_BIT;
@@ -267,11 +390,22 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     } else if (message.isEndSession()) {
       type |= Types.SECURE_MESSAGE_BIT;
       type |= Types.END_SESSION_BIT;
-      type |= Types.ENCRYPTION_REMOTE_BIT;
+      if (!Types.isSymmetricEncryption(type)) type |= Types.ENCRYPTION_REMOTE_BIT;
     }
 
     if (message.isPush()) type |= Types.PUSH_MESSAGE_BIT;
 
+    return type;
+  }
+
+  private long getInboxThreadId(IncomingTextMessage message, Map<String, Long> threadIds) {
+    String key      = message.getGroupId() == null ? message.getSender() : message.getGroupId();
+    Long   threadId = threadIds.get(key);
+
+    if (threadId != null) {
+      return threadId;
+    }
+
     Recipients recipients;
 
     try {
@@ -294,43 +428,12 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       groupRecipients = null;
     }
 
-    boolean    unread     = org.thoughtcrime.securesms.util.Util.isDefaultSmsProvider(context) ||
-                            message.isSecureMessage() || message.isKeyExchange();
-
-    long       threadId;
-
     if (groupRecipients == null) threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
     else                         threadId = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(groupRecipients);
 
-    ContentValues values = new ContentValues(6);
-    values.put(ADDRESS, message.getSender());
-    values.put(ADDRESS_DEVICE_ID,  message.getSenderDeviceId());
-    values.put(DATE_RECEIVED, System.currentTimeMillis());
-    values.put(DATE_SENT, message.getSentTimestampMillis());
-    values.put(PROTOCOL, message.getProtocol());
-    values.put(READ, unread ? 0 : 1);
+    threadIds.put(key, threadId);
 
-    if (!Util.isEmpty(message.getPseudoSubject()))
-      values.put(SUBJECT, message.getPseudoSubject());
-
-    values.put(REPLY_PATH_PRESENT, message.isReplyPathPresent());
-    values.put(SERVICE_CENTER, message.getServiceCenterAddress());
-    values.put(BODY, message.getMessageBody());
-    values.put(TYPE, type);
-    values.put(THREAD_ID, threadId);
-
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
-
-    if (unread) {
-      DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    }
-
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
-    notifyConversationListeners(threadId);
-    Trimmer.trimThread(context, threadId);
-
-    return new Pair<Long, Long>(messageId, threadId);
+    return threadId;
   }
 
   public Pair<Long, Long> insertMessageInbox(IncomingTextMessage message) {
@@ -356,9 +459,16 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       contentValues.put(TYPE, type);
 
       SQLiteDatabase db = databaseHelper.getWritableDatabase();
-      messageIds.add(db.insert(TABLE_NAME, ADDRESS, contentValues));
+      db.beginTransaction();
+
+      try {
+        messageIds.add(db.insert(TABLE_NAME, ADDRESS, contentValues));
+        DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, date, message.getMessageBody(), type);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
 
-      DatabaseFactory.getThreadDatabase(context).update(threadId);
       notifyConversationListeners(threadId);
       Trimmer.trimThread(context, threadId);
     }
@@ -400,9 +510,33 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
   public void deleteMessage(long messageId) {
     Log.w("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    Cursor cursor     = null;
+    long threadId;
+    long date;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE,
+                        new String[] {messageId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) return;
+
+      threadId = cursor.getLong(0);
+      date     = cursor.getLong(1);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    db.beginTransaction();
+
+    try {
+      db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, date);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
     notifyConversationListeners(threadId);
   }
 
@@ -32,15 +32,24 @@ import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.textsecure.util.Util;
 
+import java.lang.ref.SoftReference;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ThreadDatabase extends Database {
 
+  private static final SnippetCache snippetCache = new SnippetCache();
+
           static final String TABLE_NAME      = "thread";
   public  static final String ID              = "_id";
   public  static final String DATE            = "date";
@@ -246,27 +255,51 @@ public class ThreadDatabase extends Database {
   }
 
   public Cursor getFilteredConversationList(List<String> filter) {
-    if (filter == null || filter.size() == 0)
-      return null;
+    return getFilteredConversationList(filter, Collections.<Long>emptySet());
+  }
 
-    List<Long> recipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddresses(filter);
+  /**
+   * @return The threads with any of the recipients in <code>filter</code>, along
+   *         with those in <code>threadIds</code>.
+   */
+  public Cursor getFilteredConversationList(List<String> filter, Collection<Long> threadIds) {
+    List<Long> recipientIds = null;
 
-    if (recipientIds == null || recipientIds.size() == 0)
+    if (filter != null && filter.size() != 0)
+      recipientIds = DatabaseFactory.getAddressDatabase(context).getCanonicalAddresses(filter);
+
+    if ((recipientIds == null || recipientIds.size() == 0) && threadIds.isEmpty())
       return null;
 
-    String selection       = RECIPIENT_IDS + " = ?";
-    String[] selectionArgs = new String[recipientIds.size()];
+    StringBuilder selection     = new StringBuilder();
+    List<String>  selectionArgs = new LinkedList<String>();
+
+    if (recipientIds != null) {
+      for (long id : recipientIds) {
+        if (selection.length() > 0) selection.append(" OR ");
+        selection.append(RECIPIENT_IDS + " = ?");
+        selectionArgs.add(id+"");
+      }
+    }
+
+    if (!threadIds.isEmpty()) {
+      if (selection.length() > 0) selection.append(" OR ");
+      selection.append(ID + " IN (");
 
-    for (int i=0;i<recipientIds.size()-1;i++)
-      selection += (" OR " + RECIPIENT_IDS + " = ?");
+      Iterator<Long> iterator = threadIds.iterator();
+
+      while (iterator.hasNext()) {
+        selection.append(iterator.next());
+        if (iterator.hasNext()) selection.append(',');
+      }
 
-    int i= 0;
-    for (long id : recipientIds) {
-      selectionArgs[i++] = id+"";
+      selection.append(')');
     }
 
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor     = db.query(TABLE_NAME, null, selection, selectionArgs, null, null, DATE + " DESC");
+    Cursor cursor     = db.query(TABLE_NAME, null, selection.toString(),
+                                 selectionArgs.toArray(new String[selectionArgs.size()]),
+                                 null, null, DATE + " DESC");
     setNotifyConverationListListeners(cursor);
     return cursor;
   }
@@ -366,6 +399,97 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Accounts for a message that's just been added to a thread, without
+   * rereading the thread. Callers should run this in the same transaction
+   * as the insert.
+   */
+  public void updateForInsert(long threadId, long date, String body, long type) {
+    updateForInsert(threadId, date, body, type, 1);
+  }
+
+  /**
+   * Accounts for several messages that have just been added to a thread,
+   * where the date, body and type are those of the newest of them.
+   */
+  public void updateForInsert(long threadId, long date, String body, long type, int count) {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    long           truncated = date - date % 1000;
+
+    ContentValues contentValues = new ContentValues(3);
+    contentValues.put(DATE, truncated);
+    contentValues.put(SNIPPET, body);
+    contentValues.put(SNIPPET_TYPE, type);
+
+    db.update(TABLE_NAME, contentValues, ID + " = ? AND (" + MESSAGE_COUNT + " = 0 OR " + DATE + " <= ?)",
+              new String[] {threadId + "", truncated + ""});
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + " + count + " WHERE " + ID + " = ?",
+               new String[] {threadId + ""});
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Accounts for a change to a message's body or type, which only matters
+   * if it's the message the thread's snippet was taken from.
+   */
+  public void updateForChange(long threadId, String transport, long messageId, String body, long type) {
+    if (!DatabaseFactory.getMmsSmsDatabase(context).isSnippetMessage(threadId, transport, messageId)) {
+      return;
+    }
+
+    ContentValues contentValues = new ContentValues(2);
+    contentValues.put(SNIPPET, body);
+    contentValues.put(SNIPPET_TYPE, type);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId + ""});
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Accounts for a message that's just been deleted from a thread. The
+   * thread is only reread if the snippet came from that message, or if it
+   * might now be empty.
+   */
+  public void updateForDelete(long threadId, long date) {
+    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
+    Cursor         cursor = null;
+    long           count;
+    long           threadDate;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, DATE}, ID_WHERE,
+                        new String[] {threadId + ""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst()) {
+        return;
+      }
+
+      count      = cursor.getLong(0);
+      threadDate = cursor.getLong(1);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (count <= 1 || date - date % 1000 >= threadDate) {
+      update(threadId);
+      return;
+    }
+
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " + ID + " = ?",
+               new String[] {threadId + ""});
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Recomputes a thread's count and snippet from its messages. Inserts,
+   * changes and deletes keep these up to date on their own, so this is only
+   * needed after bulk changes, or to repair a thread.
+   */
   public void update(long threadId) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
@@ -403,6 +527,10 @@ public class ThreadDatabase extends Database {
     return new Reader(cursor, masterSecret);
   }
 
+  public static void clearSnippetCache() {
+    snippetCache.clear();
+  }
+
   public static class DistributionTypes {
     public static final int DEFAULT      = 2;
     public static final int BROADCAST    = 1;
@@ -411,14 +539,47 @@ public class ThreadDatabase extends Database {
 
   public class Reader {
 
-    private final Cursor cursor;
+    private final Cursor       cursor;
     private final MasterCipher masterCipher;
 
+    private final int idColumn;
+    private final int recipientIdsColumn;
+    private final int snippetColumn;
+    private final int snippetTypeColumn;
+    private final int dateColumn;
+    private final int countColumn;
+    private final int readColumn;
+    private final int distributionTypeColumn;
+
     public Reader(Cursor cursor, MasterSecret masterSecret) {
       this.cursor = cursor;
 
       if (masterSecret != null) this.masterCipher = new MasterCipher(masterSecret);
       else                      this.masterCipher = null;
+
+      if (cursor != null) {
+        this.idColumn               = cursor.getColumnIndexOrThrow(ThreadDatabase.ID);
+        this.recipientIdsColumn     = cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS);
+        this.snippetColumn          = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET);
+        this.snippetTypeColumn      = cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE);
+        this.dateColumn             = cursor.getColumnIndexOrThrow(ThreadDatabase.DATE);
+        this.countColumn            = cursor.getColumnIndexOrThrow(ThreadDatabase.MESSAGE_COUNT);
+        this.readColumn             = cursor.getColumnIndexOrThrow(ThreadDatabase.READ);
+        this.distributionTypeColumn = cursor.getColumnIndexOrThrow(ThreadDatabase.TYPE);
+      } else {
+        this.idColumn               = -1;
+        this.recipientIdsColumn     = -1;
+        this.snippetColumn          = -1;
+        this.snippetTypeColumn      = -1;
+        this.dateColumn             = -1;
+        this.countColumn            = -1;
+        this.readColumn             = -1;
+        this.distributionTypeColumn = -1;
+      }
+    }
+
+    public boolean isReaderFor(Cursor cursor) {
+      return this.cursor == cursor;
     }
 
     public ThreadRecord getNext() {
@@ -429,28 +590,35 @@ public class ThreadDatabase extends Database {
     }
 
     public ThreadRecord getCurrent() {
-      long threadId         = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.ID));
-      String recipientId    = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS));
+      long threadId         = cursor.getLong(idColumn);
+      String recipientId    = cursor.getString(recipientIdsColumn);
       Recipients recipients = RecipientFactory.getRecipientsForIds(context, recipientId, true);
 
-      DisplayRecord.Body body = getPlaintextBody(cursor);
-      long date               = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.DATE));
-      long count              = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.MESSAGE_COUNT));
-      long read               = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.READ));
-      long type               = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE));
-      int distributionType    = cursor.getInt(cursor.getColumnIndexOrThrow(ThreadDatabase.TYPE));
+      long date               = cursor.getLong(dateColumn);
+      DisplayRecord.Body body = getPlaintextBody(threadId, date);
+      long count              = cursor.getLong(countColumn);
+      long read               = cursor.getLong(readColumn);
+      long type               = cursor.getLong(snippetTypeColumn);
+      int distributionType    = cursor.getInt(distributionTypeColumn);
 
       return new ThreadRecord(context, body, recipients, date, count,
                               read == 1, threadId, type, distributionType);
     }
 
-    private DisplayRecord.Body getPlaintextBody(Cursor cursor) {
+    private DisplayRecord.Body getPlaintextBody(long threadId, long date) {
       try {
-        long type   = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE));
-        String body = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
+        long type   = cursor.getLong(snippetTypeColumn);
+        String body = cursor.getString(snippetColumn);
 
         if (!Util.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          String plaintext = snippetCache.get(threadId, date, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            snippetCache.put(threadId, date, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!Util.isEmpty(body) && masterCipher == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(body, false);
         } else {
@@ -466,4 +634,46 @@ public class ThreadDatabase extends Database {
       cursor.close();
     }
   }
+
+  /**
+   * Decrypted snippets, shared by every reader so that they outlive the
+   * cursors they were read from. An entry is only used while the thread's
+   * snippet is still the one it was decrypted from.
+   */
+  private static class SnippetCache {
+    private static final int MAX_CACHE_SIZE = 1000;
+
+    private final Map<Long, SnippetEntry> entries =
+        Collections.synchronizedMap(new LRUCache<Long, SnippetEntry>(MAX_CACHE_SIZE));
+
+    public String get(long threadId, long date, String ciphertext) {
+      SnippetEntry entry = entries.get(threadId);
+
+      if (entry != null && entry.date == date && entry.ciphertext.equals(ciphertext)) {
+        return entry.plaintext.get();
+      }
+
+      return null;
+    }
+
+    public void put(long threadId, long date, String ciphertext, String plaintext) {
+      entries.put(threadId, new SnippetEntry(date, ciphertext, plaintext));
+    }
+
+    public void clear() {
+      entries.clear();
+    }
+  }
+
+  private static class SnippetEntry {
+    private final long                  date;
+    private final String                ciphertext;
+    private final SoftReference<String> plaintext;
+
+    public SnippetEntry(long date, String ciphertext, String plaintext) {
+      this.date       = date;
+      this.ciphertext = ciphertext;
+      this.plaintext  = new SoftReference<String>(plaintext);
+    }
+  }
 }
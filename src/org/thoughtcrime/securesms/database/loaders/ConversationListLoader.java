@@ -6,29 +6,66 @@ import android.support.v4.content.CursorLoader;
 
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.whispersystems.textsecure.crypto.MasterSecret;
 
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 public class ConversationListLoader extends CursorLoader {
 
-  private final String filter;
-  private final Context context;
+  private static final int PREFETCH_LIMIT = 500;
 
-  public ConversationListLoader(Context context, String filter) {
+  private final String       filter;
+  private final MasterSecret masterSecret;
+  private final Context      context;
+
+  public ConversationListLoader(Context context, String filter, MasterSecret masterSecret) {
     super(context);
-    this.filter  = filter;
-    this.context = context.getApplicationContext();
+    this.filter       = filter;
+    this.masterSecret = masterSecret;
+    this.context      = context.getApplicationContext();
   }
 
   @Override
   public Cursor loadInBackground() {
+    Cursor cursor;
+
     if (filter != null && filter.trim().length() != 0) {
       List<String> numbers = ContactAccessor.getInstance()
           .getNumbersForThreadSearchFilter(filter, context.getContentResolver());
 
-      return DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers);
+      Set<Long> threadIds = Collections.emptySet();
+
+      if (masterSecret != null) {
+        threadIds = DatabaseFactory.getSearchIndexDatabase(context).getMatchingThreadIds(masterSecret, filter);
+      }
+
+      cursor = DatabaseFactory.getThreadDatabase(context).getFilteredConversationList(numbers, threadIds);
     } else {
-      return DatabaseFactory.getThreadDatabase(context).getConversationList();
+      cursor = DatabaseFactory.getThreadDatabase(context).getConversationList();
     }
+
+    prefetchRecipients(cursor);
+
+    return cursor;
+  }
+
+  private void prefetchRecipients(Cursor cursor) {
+    if (cursor == null) return;
+
+    List<String> recipientIds = new LinkedList<String>();
+    int          column       = cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS);
+
+    while (recipientIds.size() < PREFETCH_LIMIT && cursor.moveToNext()) {
+      recipientIds.add(cursor.getString(column));
+    }
+
+    cursor.moveToPosition(-1);
+
+    RecipientFactory.prefetchRecipientsForIds(context, recipientIds);
   }
 }
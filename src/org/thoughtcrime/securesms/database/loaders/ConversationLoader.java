@@ -2,15 +2,37 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.support.v4.content.CursorLoader;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 
+/**
+ * Loads a window over the end of a conversation, starting with the most
+ * recent page of messages and growing one page at a time towards the start
+ * of the thread as it's requested.
+ *
+ * The window is anchored at the (date received, id) of its oldest message,
+ * so reloads for new messages stay the same size however long the thread is.
+ * Each result is a {@link WindowCursor} recording how many times the window
+ * has grown, so a reload for a new message can be told apart from the load
+ * of an older page.
+ */
 public class ConversationLoader extends CursorLoader {
 
+  public static final int PAGE_SIZE = 100;
+
   private final Context context;
   private final long threadId;
 
+  private volatile Pair<Long, Long> windowStart;
+  private volatile boolean          windowInitialized;
+  private volatile boolean          olderPageRequested;
+  private volatile int              windowGeneration;
+  private volatile int              lastPrepended;
+
   public ConversationLoader(Context context, long threadId) {
     super(context);
     this.context  = context.getApplicationContext();
@@ -19,6 +41,72 @@ public class ConversationLoader extends CursorLoader {
 
   @Override
   public Cursor loadInBackground() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (!windowInitialized) {
+      windowStart       = database.getConversationWindowStart(threadId, PAGE_SIZE, null);
+      windowInitialized = true;
+    } else if (olderPageRequested && windowStart != null) {
+      Pair<Long, Long> previousStart = windowStart;
+
+      windowStart = database.getConversationWindowStart(threadId, PAGE_SIZE, previousStart);
+
+      if (windowStart != null) lastPrepended = PAGE_SIZE;
+      else                     lastPrepended = database.getConversationCountBefore(threadId, previousStart);
+
+      windowGeneration++;
+    }
+
+    olderPageRequested = false;
+
+    Cursor cursor = database.getConversation(threadId, windowStart);
+
+    if (cursor == null) return null;
+    else                return new WindowCursor(cursor, windowGeneration, lastPrepended);
+  }
+
+  /**
+   * Grows the window by a page of older messages, if there are any.
+   *
+   * @return The generation of the window once the page is loaded, or 0 if
+   *         there's no older page to load.
+   */
+  public int loadOlderPage() {
+    if (windowInitialized && windowStart != null && !olderPageRequested) {
+      olderPageRequested = true;
+      onContentChanged();
+      return windowGeneration + 1;
+    }
+
+    return 0;
+  }
+
+  public boolean hasOlderPages() {
+    return !windowInitialized || windowStart != null;
+  }
+
+  public static class WindowCursor extends CursorWrapper {
+    private final int generation;
+    private final int prepended;
+
+    public WindowCursor(Cursor cursor, int generation, int prepended) {
+      super(cursor);
+      this.generation = generation;
+      this.prepended  = prepended;
+    }
+
+    /**
+     * @return How many times the window had grown when this was loaded.
+     */
+    public int getGeneration() {
+      return generation;
+    }
+
+    /**
+     * @return How many older messages the last growth of the window added.
+     */
+    public int getPrepended() {
+      return prepended;
+    }
   }
 }
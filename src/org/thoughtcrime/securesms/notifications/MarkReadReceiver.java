@@ -36,7 +36,7 @@ public class MarkReadReceiver extends BroadcastReceiver {
             DatabaseFactory.getThreadDatabase(context).setRead(threadId);
           }
 
-          MessageNotifier.updateNotification(context, masterSecret);
+          MessageNotifier.refreshNotification(context, masterSecret, threadIds);
           return null;
         }
       }.execute();
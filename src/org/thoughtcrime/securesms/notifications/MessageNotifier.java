@@ -53,7 +53,13 @@ import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.textsecure.push.IncomingPushMessage;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Handles posting system notifications for new messages.
@@ -68,10 +74,27 @@ public class MessageNotifier {
 
   private volatile static long visibleThread = -1;
 
+  private static final ExecutorService updateExecutor = Executors.newSingleThreadExecutor();
+  private static final Set<Long>       pendingThreads = new HashSet<Long>();
+
+  private static Context      pendingContext;
+  private static MasterSecret pendingMasterSecret;
+  private static boolean      pendingRebuild;
+  private static boolean      pendingSignal;
+  private static boolean      updateScheduled;
+
+  // Only touched from the update executor.
+  private static NotificationState notificationState;
+  private static boolean           notificationStateDecrypted;
+
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
   }
 
+  public static long getVisibleThread() {
+    return visibleThread;
+  }
+
   public static void notifyMessageDeliveryFailed(Context context, Recipients recipients, long threadId) {
     if (visibleThread == threadId) {
       sendInThreadNotification(context);
@@ -99,55 +122,141 @@ public class MessageNotifier {
   }
 
 
+  /**
+   * Rebuilds the notification from every unread message, without signaling.
+   */
   public static void updateNotification(Context context, MasterSecret masterSecret) {
     if (!TextSecurePreferences.isNotificationsEnabled(context)) {
+      invalidateNotificationState();
       return;
     }
 
-    updateNotification(context, masterSecret, false);
+    scheduleUpdate(context, masterSecret, true, null, false);
   }
 
+  /**
+   * Signals a new message in a thread, refreshing only that thread.
+   */
   public static void updateNotification(Context context, MasterSecret masterSecret, long threadId) {
     if (!TextSecurePreferences.isNotificationsEnabled(context)) {
+      invalidateNotificationState();
       return;
     }
 
     if (visibleThread == threadId) {
       DatabaseFactory.getThreadDatabase(context).setRead(threadId);
       sendInThreadNotification(context);
+      scheduleUpdate(context, masterSecret, false, new long[] {threadId}, false);
     } else {
-      updateNotification(context, masterSecret, true);
+      scheduleUpdate(context, masterSecret, false, new long[] {threadId}, true);
     }
   }
 
-  private static void updateNotification(Context context, MasterSecret masterSecret, boolean signal) {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+  /**
+   * Refreshes the given threads after their unread messages have been read
+   * or changed, without signaling.
+   */
+  public static void refreshNotification(Context context, MasterSecret masterSecret, long... threadIds) {
+    if (!TextSecurePreferences.isNotificationsEnabled(context)) {
+      invalidateNotificationState();
+      return;
+    }
+
+    scheduleUpdate(context, masterSecret, false, threadIds, false);
+  }
+
+  private static void invalidateNotificationState() {
+    synchronized (MessageNotifier.class) {
+      pendingRebuild = true;
+    }
+  }
+
+  /**
+   * Merges a request into the pending update, so a burst of messages only
+   * produces a single rebuild of the notification.
+   */
+  private static void scheduleUpdate(Context context, MasterSecret masterSecret,
+                                     boolean rebuild, long[] threadIds, boolean signal)
+  {
+    synchronized (MessageNotifier.class) {
+      pendingContext       = context.getApplicationContext();
+      pendingMasterSecret  = masterSecret;
+      pendingRebuild      |= rebuild;
+      pendingSignal       |= signal;
+
+      if (threadIds != null) {
+        for (long threadId : threadIds) {
+          pendingThreads.add(threadId);
+        }
+      }
+
+      if (updateScheduled) return;
+      updateScheduled = true;
+    }
+
+    updateExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Context      context;
+        MasterSecret masterSecret;
+        boolean      rebuild;
+        boolean      signal;
+        Set<Long>    threadIds;
+
+        synchronized (MessageNotifier.class) {
+          context             = pendingContext;
+          masterSecret        = pendingMasterSecret;
+          rebuild             = pendingRebuild;
+          signal              = pendingSignal;
+          threadIds           = new HashSet<Long>(pendingThreads);
+
+          pendingRebuild      = false;
+          pendingSignal       = false;
+          pendingMasterSecret = null;
+          pendingThreads.clear();
+          updateScheduled     = false;
+        }
+
+        updateNotification(context, masterSecret, rebuild, threadIds, signal);
+      }
+    });
+  }
+
+  private static void updateNotification(Context context, MasterSecret masterSecret,
+                                         boolean rebuild, Set<Long> threadIds, boolean signal)
+  {
+    if (notificationState == null || rebuild || notificationStateDecrypted != (masterSecret != null)) {
+      notificationState = constructNotificationState(context, masterSecret);
+    } else {
+      for (long threadId : threadIds) {
+        updateThreadNotificationState(context, masterSecret, notificationState, threadId);
+      }
+    }
+
+    notificationStateDecrypted = masterSecret != null;
+
+    Cursor pushCursor = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      pushCursor = DatabaseFactory.getPushDatabase(context).getPending();
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
+      if (notificationState.isEmpty() && (pushCursor == null || pushCursor.isAfterLast())) {
         ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
           .cancel(NOTIFICATION_ID);
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+      NotificationState displayState = new NotificationState(notificationState);
 
-      appendPushNotificationState(context, masterSecret, notificationState, pushCursor);
+      appendPushNotificationState(context, masterSecret, displayState, pushCursor);
 
-      if (notificationState.hasMultipleThreads()) {
-        sendMultipleThreadNotification(context, masterSecret, notificationState, signal);
+      if (displayState.hasMultipleThreads()) {
+        sendMultipleThreadNotification(context, masterSecret, displayState, signal);
       } else {
-        sendSingleThreadNotification(context, masterSecret, notificationState, signal);
+        sendSingleThreadNotification(context, masterSecret, displayState, signal);
       }
     } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+      if (pushCursor != null) pushCursor.close();
     }
   }
 
@@ -304,7 +413,8 @@ public class MessageNotifier {
         SpannableString body       = new SpannableString(context.getString(R.string.MessageNotifier_encrypted_message));
         body.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 
-        notificationState.addNotification(new NotificationItem(recipient, recipients, null, threadId, body, null));
+        notificationState.addNotification(new NotificationItem(recipient, recipients, null, threadId, body,
+                                                               null, message.getTimestampMillis()));
       }
     } finally {
       if (reader != null)
@@ -313,27 +423,56 @@ public class MessageNotifier {
   }
 
   private static NotificationState constructNotificationState(Context context,
-                                                              MasterSecret masterSecret,
-                                                              Cursor cursor)
+                                                              MasterSecret masterSecret)
   {
-    NotificationState notificationState = new NotificationState();
-    MessageRecord record;
-    MmsSmsDatabase.Reader reader;
+    NotificationState  notificationState = new NotificationState();
+    Map<Long, Integer> unreadCounts      = DatabaseFactory.getMmsSmsDatabase(context).getUnreadCounts();
+
+    for (Map.Entry<Long, Integer> entry : unreadCounts.entrySet()) {
+      setThreadNotificationState(context, masterSecret, notificationState, entry.getKey(), entry.getValue());
+    }
+
+    return notificationState;
+  }
+
+  private static void updateThreadNotificationState(Context context,
+                                                    MasterSecret masterSecret,
+                                                    NotificationState notificationState,
+                                                    long threadId)
+  {
+    int unreadCount = DatabaseFactory.getMmsSmsDatabase(context).getUnreadCount(threadId);
+    setThreadNotificationState(context, masterSecret, notificationState, threadId, unreadCount);
+  }
+
+  private static void setThreadNotificationState(Context context,
+                                                 MasterSecret masterSecret,
+                                                 NotificationState notificationState,
+                                                 long threadId, int unreadCount)
+  {
+    if (unreadCount == 0) {
+      notificationState.removeThread(threadId);
+      return;
+    }
+
+    List<NotificationItem> notifications    = new LinkedList<NotificationItem>();
+    Recipients             threadRecipients = null;
+    MmsSmsDatabase.Reader  reader;
+    MessageRecord          record;
+
+    Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread(threadId, NotificationState.MAX_NOTIFICATIONS);
 
     if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
     else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
 
+    if (threadId != -1) {
+      threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+    }
+
     while ((record = reader.getNext()) != null) {
-      Recipient       recipient        = record.getIndividualRecipient();
-      Recipients      recipients       = record.getRecipients();
-      long            threadId         = record.getThreadId();
-      SpannableString body             = record.getDisplayBody();
-      Uri             image            = null;
-      Recipients      threadRecipients = null;
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
-      }
+      Recipient       recipient  = record.getIndividualRecipient();
+      Recipients      recipients = record.getRecipients();
+      SpannableString body       = record.getDisplayBody();
+      Uri             image      = null;
 
       // XXXX This is so fucked up.  FIX ME!
       if (body.toString().equals(context.getString(R.string.MessageDisplayHelper_decrypting_please_wait))) {
@@ -341,11 +480,13 @@ public class MessageNotifier {
         body.setSpan(new StyleSpan(android.graphics.Typeface.ITALIC), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
       }
 
-      notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image));
+      notifications.add(new NotificationItem(recipient, recipients, threadRecipients, threadId,
+                                             body, image, record.getDateReceived()));
     }
 
     reader.close();
-    return notificationState;
+
+    notificationState.setThread(threadId, unreadCount, notifications);
   }
 
   private static void setNotificationAlarms(Context context,
@@ -8,22 +8,78 @@ import android.util.Log;
 
 import org.whispersystems.textsecure.crypto.MasterSecret;
 
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
-
+import java.util.Map;
+
+/**
+ * The unread messages to notify about, kept per thread so that a single
+ * thread can be refreshed without rereading every unread message.
+ *
+ * Each thread holds its unread count and only its most recent messages.
+ */
 public class NotificationState {
 
-  private final LinkedList<NotificationItem> notifications = new LinkedList<NotificationItem>();
-  private final Set<Long>                    threads       = new HashSet<Long>();
+  public static final int MAX_NOTIFICATIONS = 20;
+
+  private final Map<Long, ThreadState> threads = new LinkedHashMap<Long, ThreadState>();
+
+  private int                    notificationCount = 0;
+  private List<NotificationItem> notifications;
+
+  public NotificationState() {}
 
-  private int notificationCount = 0;
+  public NotificationState(NotificationState state) {
+    for (Map.Entry<Long, ThreadState> entry : state.threads.entrySet()) {
+      threads.put(entry.getKey(), new ThreadState(entry.getValue()));
+    }
+
+    this.notificationCount = state.notificationCount;
+  }
 
   public void addNotification(NotificationItem item) {
-    notifications.addFirst(item);
-    threads.add(item.getThreadId());
+    ThreadState thread = threads.get(item.getThreadId());
+
+    if (thread == null) {
+      thread = new ThreadState(0, new LinkedList<NotificationItem>());
+      threads.put(item.getThreadId(), thread);
+    }
+
+    thread.notifications.addFirst(item);
+    thread.count++;
     notificationCount++;
+    notifications = null;
+  }
+
+  /**
+   * Replaces everything known about a thread.
+   *
+   * @param notifications The thread's most recent unread messages, newest first.
+   */
+  public void setThread(long threadId, int unreadCount, List<NotificationItem> notifications) {
+    removeThread(threadId);
+
+    if (unreadCount > 0) {
+      threads.put(threadId, new ThreadState(unreadCount, new LinkedList<NotificationItem>(notifications)));
+      notificationCount += unreadCount;
+    }
+  }
+
+  public void removeThread(long threadId) {
+    ThreadState thread = threads.remove(threadId);
+
+    if (thread != null) {
+      notificationCount -= thread.count;
+    }
+
+    notifications = null;
+  }
+
+  public boolean isEmpty() {
+    return threads.isEmpty();
   }
 
   public boolean hasMultipleThreads() {
@@ -34,19 +90,41 @@ public class NotificationState {
     return notificationCount;
   }
 
+  /**
+   * @return The most recent unread messages across all threads, newest first.
+   */
   public List<NotificationItem> getNotifications() {
+    if (notifications == null) {
+      List<NotificationItem> merged = new LinkedList<NotificationItem>();
+
+      for (ThreadState thread : threads.values()) {
+        merged.addAll(thread.notifications);
+      }
+
+      Collections.sort(merged, new Comparator<NotificationItem>() {
+        @Override
+        public int compare(NotificationItem lhs, NotificationItem rhs) {
+          if      (lhs.getTimestamp() > rhs.getTimestamp()) return -1;
+          else if (lhs.getTimestamp() < rhs.getTimestamp()) return 1;
+          else                                              return 0;
+        }
+      });
+
+      notifications = merged.size() > MAX_NOTIFICATIONS ? merged.subList(0, MAX_NOTIFICATIONS) : merged;
+    }
+
     return notifications;
   }
 
   public Bitmap getContactPhoto() {
-    return notifications.get(0).getIndividualRecipient().getContactPhoto();
+    return getNotifications().get(0).getIndividualRecipient().getContactPhoto();
   }
 
   public PendingIntent getMarkAsReadIntent(Context context, MasterSecret masterSecret) {
     long[] threadArray = new long[threads.size()];
     int index          = 0;
 
-    for (long thread : threads) {
+    for (long thread : threads.keySet()) {
       Log.w("NotificationState", "Added thread: " + thread);
       threadArray[index++] = thread;
     }
@@ -64,4 +142,18 @@ public class NotificationState {
 
     return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
   }
+
+  private static class ThreadState {
+    private       int                          count;
+    private final LinkedList<NotificationItem> notifications;
+
+    public ThreadState(int count, LinkedList<NotificationItem> notifications) {
+      this.count         = count;
+      this.notifications = notifications;
+    }
+
+    public ThreadState(ThreadState state) {
+      this(state.count, new LinkedList<NotificationItem>(state.notifications));
+    }
+  }
 }
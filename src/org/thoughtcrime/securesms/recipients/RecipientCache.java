@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.recipients;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An LRU cache of recipients, bounded by the memory they use rather than
+ * by how many there are.
+ *
+ * Contact photos are budgeted separately from everything else, since
+ * they're most of the cost. A recipient's photo can arrive after it's
+ * been cached, so its weight is rechecked whenever it's touched. Photos
+ * that aren't owned by a single recipient, like the default contact
+ * photo, aren't counted at all.
+ */
+class RecipientCache {
+
+  private static final int METADATA_OVERHEAD = 128;
+
+  private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+  private final long maxMetadataBytes;
+  private final long maxPhotoBytes;
+
+  private long metadataBytes;
+  private long photoBytes;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public RecipientCache(long maxMetadataBytes, long maxPhotoBytes) {
+    this.maxMetadataBytes = maxMetadataBytes;
+    this.maxPhotoBytes    = maxPhotoBytes;
+  }
+
+  public synchronized Recipient get(long recipientId) {
+    Entry entry = entries.get(recipientId);
+
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+
+    hits++;
+
+    if (entry.reweigh()) {
+      trim();
+    }
+
+    return entry.recipient;
+  }
+
+  public synchronized boolean contains(long recipientId) {
+    return entries.containsKey(recipientId);
+  }
+
+  public synchronized void put(long recipientId, Recipient recipient, Bitmap sharedPhoto) {
+    remove(recipientId);
+
+    Entry entry = new Entry(recipient, sharedPhoto);
+    entries.put(recipientId, entry);
+    entry.reweigh();
+
+    trim();
+  }
+
+  public synchronized void remove(long recipientId) {
+    Entry entry = entries.remove(recipientId);
+
+    if (entry != null) {
+      entry.release();
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    metadataBytes = 0;
+    photoBytes    = 0;
+  }
+
+  /**
+   * @return The cached recipients that are backed by a contact, keyed by
+   *         the contact's lookup key.
+   */
+  public synchronized Map<String, List<Recipient>> getContactRecipients() {
+    Map<String, List<Recipient>> results = new HashMap<String, List<Recipient>>();
+
+    for (Entry entry : entries.values()) {
+      Uri contactUri = entry.recipient.getContactUri();
+
+      if (contactUri == null || contactUri.getPathSegments().size() < 3) {
+        continue;
+      }
+
+      String          lookupKey  = contactUri.getPathSegments().get(2);
+      List<Recipient> recipients = results.get(lookupKey);
+
+      if (recipients == null) {
+        recipients = new LinkedList<Recipient>();
+        results.put(lookupKey, recipients);
+      }
+
+      recipients.add(entry.recipient);
+    }
+
+    return results;
+  }
+
+  /**
+   * Drops every cached recipient that isn't backed by a contact or a
+   * group, since any of them might now match a new contact.
+   */
+  public synchronized void removeUnmatched() {
+    Iterator<Entry> iterator = entries.values().iterator();
+
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+
+      if (entry.recipient.getContactUri() == null && !entry.recipient.isGroupRecipient()) {
+        iterator.remove();
+        entry.release();
+      }
+    }
+  }
+
+  public synchronized String getStatistics() {
+    return "entries: " + entries.size() + ", metadata: " + metadataBytes + "/" + maxMetadataBytes +
+           ", photos: " + photoBytes + "/" + maxPhotoBytes + ", hits: " + hits + ", misses: " + misses +
+           ", evictions: " + evictions;
+  }
+
+  private void trim() {
+    Iterator<Entry> iterator = entries.values().iterator();
+
+    while ((metadataBytes > maxMetadataBytes || photoBytes > maxPhotoBytes) && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      iterator.remove();
+      entry.release();
+      evictions++;
+    }
+  }
+
+  private class Entry {
+    private final Recipient recipient;
+    private final Bitmap    sharedPhoto;
+
+    private int    metadataSize;
+    private int    photoSize;
+    private Bitmap weighedPhoto;
+
+    public Entry(Recipient recipient, Bitmap sharedPhoto) {
+      this.recipient   = recipient;
+      this.sharedPhoto = sharedPhoto;
+    }
+
+    /**
+     * @return Whether the entry got any heavier.
+     */
+    public boolean reweigh() {
+      Bitmap photo           = recipient.getContactPhoto();
+      int    oldMetadataSize = metadataSize;
+      int    oldPhotoSize    = photoSize;
+
+      metadataSize = METADATA_OVERHEAD + 2 * (length(recipient.getNumber()) + length(recipient.getName()));
+
+      if (photo != weighedPhoto) {
+        photoSize    = (photo == null || photo == sharedPhoto) ? 0 : photo.getRowBytes() * photo.getHeight();
+        weighedPhoto = photo;
+      }
+
+      metadataBytes += metadataSize - oldMetadataSize;
+      photoBytes    += photoSize - oldPhotoSize;
+
+      return metadataSize > oldMetadataSize || photoSize > oldPhotoSize;
+    }
+
+    public void release() {
+      metadataBytes -= metadataSize;
+      photoBytes    -= photoSize;
+    }
+
+    private int length(String value) {
+      return value == null ? 0 : value.length();
+    }
+  }
+}
@@ -25,8 +25,10 @@ import org.thoughtcrime.securesms.util.NumberUtil;
 import org.whispersystems.textsecure.push.IncomingPushMessage;
 import org.whispersystems.textsecure.util.Util;
 
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 public class RecipientFactory {
@@ -50,6 +52,31 @@ public class RecipientFactory {
     return new Recipients(results);
   }
 
+  /**
+   * Warms the recipient cache for a list of space-separated recipient id
+   * strings, such as those of the threads about to be shown in a list.
+   */
+  public static void prefetchRecipientsForIds(Context context, List<String> recipientIds) {
+    Set<Long> ids = new HashSet<Long>();
+
+    for (String recipientIdList : recipientIds) {
+      if (Util.isEmpty(recipientIdList))
+        continue;
+
+      StringTokenizer tokenizer = new StringTokenizer(recipientIdList.trim(), " ");
+
+      while (tokenizer.hasMoreTokens()) {
+        try {
+          ids.add(Long.parseLong(tokenizer.nextToken()));
+        } catch (NumberFormatException e) {
+          Log.w("RecipientFactory", e);
+        }
+      }
+    }
+
+    provider.prefetchRecipients(context, ids);
+  }
+
   private static Recipient getRecipientForNumber(Context context, String number, boolean asynchronous) {
     long recipientId = CanonicalAddressDatabase.getInstance(context).getCanonicalAddress(number);
     return provider.getRecipient(context, recipientId, asynchronous);
@@ -137,6 +164,11 @@ public class RecipientFactory {
     provider.clearCache();
   }
 
+  public static void invalidateChangedContacts(Context context) {
+    ContactPhotoFactory.clearCache();
+    provider.invalidateChangedContacts(context.getApplicationContext());
+  }
+
   public static void clearCache(Recipient recipient) {
     ContactPhotoFactory.clearCache(recipient);
     provider.clearCache(recipient);
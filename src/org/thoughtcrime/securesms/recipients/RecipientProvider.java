@@ -19,38 +19,71 @@ package org.thoughtcrime.securesms.recipients;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contacts.ContactPhotoFactory;
 import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
+import org.thoughtcrime.securesms.util.BitmapDecodingException;
+import org.thoughtcrime.securesms.util.BitmapUtil;
 import org.thoughtcrime.securesms.util.GroupUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.textsecure.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RecipientProvider {
 
-  private static final Map<Long,Recipient> recipientCache         = Collections.synchronizedMap(new LRUCache<Long,Recipient>(1000));
-  private static final ExecutorService     asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final long MAX_METADATA_BYTES        = 256 * 1024;
+  private static final long MAX_PHOTO_BYTES           = Runtime.getRuntime().maxMemory() / 8;
+  private static final int  CONTACT_LOOKUP_BATCH_SIZE = 50;
+
+  private static final RecipientCache    recipientCache         = new RecipientCache(MAX_METADATA_BYTES, MAX_PHOTO_BYTES);
+  private static final Map<String,String> contactVersions       = Collections.synchronizedMap(new HashMap<String,String>());
+  private static final ExecutorService   asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final ExecutorService   contactPhotoDecoder    = Executors.newFixedThreadPool(2);
+  private static final AtomicBoolean     invalidationPending    = new AtomicBoolean(false);
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
     PhoneLookup.LOOKUP_KEY,
     PhoneLookup._ID,
+    PhoneLookup.PHOTO_ID,
+  };
+
+  private static final String[] PHONE_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER,
+    Phone.PHOTO_ID,
+  };
+
+  private static final String[] CONTACT_VERSION_PROJECTION = new String[] {
+    Contacts.LOOKUP_KEY,
+    Contacts.DISPLAY_NAME,
+    Contacts.PHOTO_ID,
   };
 
   public Recipient getRecipient(Context context, long recipientId, boolean asynchronous) {
@@ -66,7 +99,7 @@ public class RecipientProvider {
 
     Recipient recipient;
     RecipientDetails details;
-    String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(String.valueOf(recipientId));
+    String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
     final boolean isGroupRecipient = GroupUtil.isEncodedGroup(number);
 
     if (isGroupRecipient) details = getGroupRecipientDetails(context, number);
@@ -81,14 +114,14 @@ public class RecipientProvider {
       recipient = new Recipient(null, number, recipientId, null, defaultPhoto);
     }
 
-    recipientCache.put(recipientId, recipient);
+    cacheRecipient(context, recipientId, recipient);
     return recipient;
   }
 
   private Recipient getAsynchronousRecipient(final Context context, final long recipientId) {
     Log.w("RecipientProvider", "Cache miss [ASYNC]!");
 
-    final String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(String.valueOf(recipientId));
+    final String number = CanonicalAddressDatabase.getInstance(context).getAddressFromId(recipientId);
     final boolean isGroupRecipient = GroupUtil.isEncodedGroup(number);
 
     Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
@@ -107,18 +140,171 @@ public class RecipientProvider {
         ? ContactPhotoFactory.getDefaultGroupPhoto(context)
         : ContactPhotoFactory.getDefaultContactPhoto(context);
     Recipient recipient = new Recipient(number, defaultPhoto, recipientId, future);
-    recipientCache.put(recipientId, recipient);
+    cacheRecipient(context, recipientId, recipient);
 
     return recipient;
   }
 
+  /**
+   * Resolves every uncached recipient in <code>recipientIds</code> together,
+   * so that filling a list takes a handful of queries rather than several
+   * per row. Addresses are looked up with one query, and contact names with
+   * one query per batch of numbers. Contact photos are decoded afterwards in
+   * the background, and are delivered to each recipient's listeners.
+   */
+  public void prefetchRecipients(final Context context, Set<Long> recipientIds) {
+    Set<Long> uncachedIds = new HashSet<Long>();
+
+    for (long recipientId : recipientIds) {
+      if (!recipientCache.contains(recipientId)) {
+        uncachedIds.add(recipientId);
+      }
+    }
+
+    if (uncachedIds.isEmpty()) {
+      return;
+    }
+
+    Map<Long, String> numbers        = CanonicalAddressDatabase.getInstance(context).getAddressesFromIds(uncachedIds);
+    Set<String>       contactNumbers = new HashSet<String>();
+
+    for (String number : numbers.values()) {
+      if (!GroupUtil.isEncodedGroup(number) && PhoneNumberUtils.isWellFormedSmsAddress(number)) {
+        contactNumbers.add(number);
+      }
+    }
+
+    Map<String, ContactDetails> contacts = getContactDetails(context, contactNumbers);
+
+    for (Map.Entry<Long, String> entry : numbers.entrySet()) {
+      long   recipientId = entry.getKey();
+      String number      = entry.getValue();
+
+      if (!contactNumbers.contains(number)) {
+        getAsynchronousRecipient(context, recipientId);
+        continue;
+      }
+
+      final ContactDetails contact = contacts.get(number);
+
+      if (contact == null) {
+        cacheRecipient(context, recipientId, new Recipient(null, number, recipientId, null,
+                                                           ContactPhotoFactory.getDefaultContactPhoto(context)));
+        continue;
+      }
+
+      final Recipient recipient = new Recipient(contact.name, number, recipientId, contact.contactUri,
+                                                ContactPhotoFactory.getDefaultContactPhoto(context));
+
+      cacheRecipient(context, recipientId, recipient);
+
+      contactPhotoDecoder.execute(new Runnable() {
+        @Override
+        public void run() {
+          recipient.setContactPhoto(getContactPhoto(context, Uri.withAppendedPath(Contacts.CONTENT_URI,
+                                                                                  contact.contactId + "")));
+        }
+      });
+    }
+  }
+
   public void clearCache() {
     recipientCache.clear();
   }
 
   public void clearCache(Recipient recipient) {
-    if (recipientCache.containsKey(recipient.getRecipientId()))
-      recipientCache.remove(recipient.getRecipientId());
+    recipientCache.remove(recipient.getRecipientId());
+  }
+
+  /**
+   * Drops only the cached recipients whose contact has actually changed,
+   * along with any that have no contact and might now match a new one.
+   *
+   * The contacts provider doesn't say which contacts changed, so each
+   * cached contact's name and photo are compared against the ones it was
+   * resolved with. Bursts of changes are coalesced into a single check.
+   */
+  public void invalidateChangedContacts(final Context context) {
+    if (!invalidationPending.compareAndSet(false, true)) {
+      return;
+    }
+
+    asyncRecipientResolver.submit(new Runnable() {
+      @Override
+      public void run() {
+        invalidationPending.set(false);
+
+        Map<String, List<Recipient>> contactRecipients = recipientCache.getContactRecipients();
+        Map<String, String>          currentVersions   = getContactVersions(context, contactRecipients.keySet());
+
+        for (Map.Entry<String, List<Recipient>> entry : contactRecipients.entrySet()) {
+          String currentVersion = currentVersions.get(entry.getKey());
+
+          if (currentVersion == null || !currentVersion.equals(contactVersions.get(entry.getKey()))) {
+            for (Recipient recipient : entry.getValue()) {
+              recipientCache.remove(recipient.getRecipientId());
+            }
+          }
+        }
+
+        contactVersions.keySet().retainAll(currentVersions.keySet());
+        recipientCache.removeUnmatched();
+
+        Log.w("RecipientProvider", "Recipient cache " + recipientCache.getStatistics());
+      }
+    });
+  }
+
+  private Map<String, String> getContactVersions(Context context, Set<String> lookupKeys) {
+    Map<String, String> results = new HashMap<String, String>();
+    List<String>        batch   = new LinkedList<String>();
+
+    for (String lookupKey : lookupKeys) {
+      batch.add(lookupKey);
+
+      if (batch.size() == CONTACT_LOOKUP_BATCH_SIZE) {
+        getContactVersions(context, batch, results);
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      getContactVersions(context, batch, results);
+    }
+
+    return results;
+  }
+
+  private void getContactVersions(Context context, List<String> lookupKeys, Map<String, String> results) {
+    StringBuilder selection = new StringBuilder(Contacts.LOOKUP_KEY + " IN (");
+
+    for (int i=0;i<lookupKeys.size();i++) {
+      selection.append(i == 0 ? "?" : ", ?");
+    }
+
+    selection.append(")");
+
+    Cursor cursor = context.getContentResolver().query(Contacts.CONTENT_URI, CONTACT_VERSION_PROJECTION,
+                                                       selection.toString(),
+                                                       lookupKeys.toArray(new String[lookupKeys.size()]),
+                                                       null);
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        results.put(cursor.getString(0), getContactVersion(cursor.getString(1), cursor.getLong(2)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private String getContactVersion(String name, long photoId) {
+    return name + ":" + photoId;
+  }
+
+  private void cacheRecipient(Context context, long recipientId, Recipient recipient) {
+    recipientCache.put(recipientId, recipient, ContactPhotoFactory.getDefaultContactPhoto(context));
   }
 
   private RecipientDetails getRecipientDetails(Context context, String number) {
@@ -132,6 +318,8 @@ public class RecipientProvider {
         Bitmap contactPhoto = getContactPhoto(context, Uri.withAppendedPath(Contacts.CONTENT_URI,
                                                                             cursor.getLong(2)+""));
 
+        contactVersions.put(cursor.getString(1), getContactVersion(cursor.getString(0), cursor.getLong(3)));
+
         return new RecipientDetails(cursor.getString(0), contactUri, contactPhoto);
       }
     } finally {
@@ -142,6 +330,55 @@ public class RecipientProvider {
     return null;
   }
 
+  private Map<String, ContactDetails> getContactDetails(Context context, Set<String> numbers) {
+    Map<String, ContactDetails> results = new HashMap<String, ContactDetails>();
+    List<String>                batch   = new LinkedList<String>();
+
+    for (String number : numbers) {
+      batch.add(number);
+
+      if (batch.size() == CONTACT_LOOKUP_BATCH_SIZE) {
+        getContactDetails(context, batch, results);
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      getContactDetails(context, batch, results);
+    }
+
+    return results;
+  }
+
+  private void getContactDetails(Context context, List<String> numbers, Map<String, ContactDetails> results) {
+    StringBuilder selection = new StringBuilder();
+
+    for (int i=0;i<numbers.size();i++) {
+      if (i != 0) selection.append(" OR ");
+      selection.append("PHONE_NUMBERS_EQUAL(" + Phone.NUMBER + ", ?)");
+    }
+
+    Cursor cursor = context.getContentResolver().query(Phone.CONTENT_URI, PHONE_PROJECTION, selection.toString(),
+                                                       numbers.toArray(new String[numbers.size()]), null);
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        String phoneNumber = cursor.getString(3);
+
+        for (String number : numbers) {
+          if (!results.containsKey(number) && PhoneNumberUtils.compare(number, phoneNumber)) {
+            Uri contactUri = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
+            results.put(number, new ContactDetails(cursor.getString(0), contactUri, cursor.getLong(2)));
+            contactVersions.put(cursor.getString(1), getContactVersion(cursor.getString(0), cursor.getLong(4)));
+          }
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   private RecipientDetails getGroupRecipientDetails(Context context, String groupId) {
     try {
       GroupDatabase.GroupRecord record  = DatabaseFactory.getGroupDatabase(context)
@@ -152,7 +389,7 @@ public class RecipientProvider {
         Bitmap avatar;
 
         if (avatarBytes == null) avatar = ContactPhotoFactory.getDefaultContactPhoto(context);
-        else                     avatar = BitmapFactory.decodeByteArray(avatarBytes, 0, avatarBytes.length);
+        else                     avatar = decodePhoto(context, avatarBytes);
 
         return new RecipientDetails(record.getTitle(), null, avatar);
       }
@@ -169,8 +406,42 @@ public class RecipientProvider {
 
     if (inputStream == null)
       return ContactPhotoFactory.getDefaultContactPhoto(context);
-    else
-      return BitmapFactory.decodeStream(inputStream);
+
+    try {
+      return decodePhoto(context, Util.readFully(inputStream));
+    } catch (IOException e) {
+      Log.w("RecipientProvider", e);
+      return ContactPhotoFactory.getDefaultContactPhoto(context);
+    }
+  }
+
+  /**
+   * Decodes a photo no larger than it'll ever be displayed, rather than at
+   * whatever size it was stored.
+   */
+  private Bitmap decodePhoto(Context context, byte[] photoBytes) {
+    int maxSize = context.getResources().getDimensionPixelSize(R.dimen.contact_photo_max_size);
+
+    try {
+      return BitmapUtil.createScaledBitmap(new ByteArrayInputStream(photoBytes),
+                                           new ByteArrayInputStream(photoBytes),
+                                           maxSize, maxSize);
+    } catch (BitmapDecodingException e) {
+      Log.w("RecipientProvider", e);
+      return ContactPhotoFactory.getDefaultContactPhoto(context);
+    }
+  }
+
+  private static class ContactDetails {
+    private final String name;
+    private final Uri    contactUri;
+    private final long   contactId;
+
+    public ContactDetails(String name, Uri contactUri, long contactId) {
+      this.name       = name;
+      this.contactUri = contactUri;
+      this.contactId  = contactId;
+    }
   }
 
   public static class RecipientDetails {
@@ -53,7 +53,7 @@ public class DirectoryRefreshService extends Service {
       try {
         Log.w("DirectoryRefreshService", "Refreshing directory...");
 
-        DirectoryHelper.refreshDirectory(context);
+        DirectoryHelper.refreshDirectoryIncremental(context);
 
         Log.w("DirectoryRefreshService", "Directory refresh complete...");
       } finally {
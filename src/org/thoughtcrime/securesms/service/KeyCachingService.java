@@ -39,8 +39,11 @@ import org.thoughtcrime.securesms.crypto.DecryptingQueue;
 import org.thoughtcrime.securesms.crypto.InvalidPassphraseException;
 import org.whispersystems.textsecure.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.whispersystems.textsecure.storage.SessionRecordV2;
 
 /**
  * Small service that stays running to keep a key cached in memory.
@@ -85,6 +88,7 @@ public class KeyCachingService extends Service {
       protected Void doInBackground(Void... params) {
         if (!DatabaseUpgradeActivity.isUpdate(KeyCachingService.this)) {
           DecryptingQueue.schedulePendingDecrypts(KeyCachingService.this, masterSecret);
+          DatabaseFactory.getSearchIndexDatabase(KeyCachingService.this).scheduleBackfill(masterSecret);
           MessageNotifier.updateNotification(KeyCachingService.this, masterSecret);
         }
         return null;
@@ -160,6 +164,9 @@ public class KeyCachingService extends Service {
     new AsyncTask<Void, Void, Void>() {
       @Override
       protected Void doInBackground(Void... params) {
+        SessionRecordV2.clearCache();
+        ThreadDatabase.clearSnippetCache();
+        DatabaseFactory.getSearchIndexDatabase(KeyCachingService.this).clearTokenKey();
         MessageNotifier.updateNotification(KeyCachingService.this, null);
         return null;
       }
@@ -1,6 +1,8 @@
 package org.thoughtcrime.securesms.service;
 
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
@@ -9,10 +11,14 @@ import android.util.Pair;
 import org.thoughtcrime.securesms.Release;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.EncryptingPartDatabase;
+import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.PartDatabase;
+import org.thoughtcrime.securesms.database.PushTransferDatabase;
+import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.push.PushServiceSocketFactory;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.textsecure.crypto.AttachmentCipherInputStream;
+import org.whispersystems.textsecure.crypto.AttachmentCipherStreamInputStream;
+import org.whispersystems.textsecure.crypto.InvalidMacException;
 import org.whispersystems.textsecure.crypto.InvalidMessageException;
 import org.whispersystems.textsecure.crypto.MasterCipher;
 import org.whispersystems.textsecure.crypto.MasterSecret;
@@ -21,15 +27,33 @@ import org.whispersystems.textsecure.push.PushServiceSocket;
 import org.whispersystems.textsecure.util.Base64;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.PduPart;
 
 public class PushDownloader {
 
+  private static final long CHECKPOINT_BYTES     = 256 * 1024;
+  private static final int  DOWNLOAD_CONCURRENCY = 3;
+
+  private static final ExecutorService         transferExecutor = Executors.newFixedThreadPool(DOWNLOAD_CONCURRENCY);
+  private static final Map<Long, PartDownload> queuedDownloads  = new LinkedHashMap<Long, PartDownload>();
+  private static final Set<Long>               activeDownloads  = new HashSet<Long>();
+
+  private static long scheduledRetry;
+
   private final Context context;
 
   public PushDownloader(Context context) {
@@ -42,77 +66,298 @@ public class PushDownloader {
 
     long         messageId = intent.getLongExtra("message_id", -1);
     PartDatabase database  = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
+    MmsDatabase  mms       = DatabaseFactory.getMmsDatabase(context);
 
     Log.w("PushDownloader", "Downloading push parts for: " + messageId);
 
     if (messageId != -1) {
-      List<Pair<Long, PduPart>> parts = database.getParts(messageId, false);
+      List<Pair<Long, PduPart>> parts    = database.getParts(messageId, false);
+      long                      threadId = mms.getThreadIdForMessage(messageId);
 
       for (Pair<Long, PduPart> partPair : parts) {
-        retrievePart(masterSecret, partPair.second, messageId, partPair.first);
-        Log.w("PushDownloader", "Got part: " + partPair.first);
+        enqueue(new PartDownload(masterSecret, partPair.second, messageId, partPair.first, threadId));
       }
     } else {
-      List<Pair<Long, Pair<Long, PduPart>>> parts = database.getPushPendingParts();
+      PushTransferDatabase                  transfers = DatabaseFactory.getPushTransferDatabase(context);
+      List<Pair<Long, Pair<Long, PduPart>>> parts     = database.getPushPendingParts();
+      long                                  nextRetry = Long.MAX_VALUE;
 
       for (Pair<Long, Pair<Long, PduPart>> partPair : parts) {
-        retrievePart(masterSecret, partPair.second.second, partPair.first, partPair.second.first);
-        Log.w("PushDownloader", "Got part: " + partPair.second.first);
+        long nextAttempt = transfers.getNextAttempt(partPair.second.first);
+
+        if (nextAttempt > System.currentTimeMillis()) {
+          nextRetry = Math.min(nextRetry, nextAttempt);
+          continue;
+        }
+
+        enqueue(new PartDownload(masterSecret, partPair.second.second, partPair.first,
+                                 partPair.second.first, mms.getThreadIdForMessage(partPair.first)));
+      }
+
+      if (nextRetry != Long.MAX_VALUE) {
+        scheduleRetry(nextRetry);
+      }
+    }
+  }
+
+  /**
+   * Queues a part for download, unless it's already queued or in progress.
+   * Each queued part gets one run on the transfer pool, and each run takes
+   * whichever queued part is most urgent at the time it starts.
+   */
+  private void enqueue(PartDownload download) {
+    synchronized (queuedDownloads) {
+      if (queuedDownloads.containsKey(download.partId) || activeDownloads.contains(download.partId)) {
+        Log.w("PushDownloader", "Already downloading part: " + download.partId);
+        return;
+      }
+
+      queuedDownloads.put(download.partId, download);
+    }
+
+    transferExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        PartDownload next = takeNextDownload();
+
+        try {
+          long nextRetry = retrievePart(next.masterSecret, next.part, next.messageId, next.partId);
+          Log.w("PushDownloader", "Got part: " + next.partId);
+
+          if (nextRetry != Long.MAX_VALUE) {
+            scheduleRetry(nextRetry);
+          }
+        } finally {
+          synchronized (queuedDownloads) {
+            activeDownloads.remove(next.partId);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * @return The oldest queued part in the conversation the user is looking
+   *         at, or the oldest queued part overall if there are none.
+   */
+  private static PartDownload takeNextDownload() {
+    long visibleThread = MessageNotifier.getVisibleThread();
+
+    synchronized (queuedDownloads) {
+      PartDownload next = null;
+
+      for (PartDownload download : queuedDownloads.values()) {
+        if (next == null) next = download;
+
+        if (download.threadId == visibleThread) {
+          next = download;
+          break;
+        }
       }
+
+      queuedDownloads.remove(next.partId);
+      activeDownloads.add(next.partId);
+
+      return next;
     }
   }
 
-  private void retrievePart(MasterSecret masterSecret, PduPart part, long messageId, long partId) {
-    EncryptingPartDatabase database       = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
-    File                   attachmentFile = null;
+  /**
+   * A part's first attempt streams the ciphertext straight through the
+   * cipher into its part file. If that attempt fails, later ones download
+   * the ciphertext to a partial file first, with checkpoints, so that they
+   * can resume where the last one stopped.
+   *
+   * @return The time at which the download should be retried, or
+   *         Long.MAX_VALUE if it succeeded or failed permanently.
+   */
+  private long retrievePart(MasterSecret masterSecret, PduPart part, long messageId, long partId) {
+    EncryptingPartDatabase database  = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
+    PushTransferDatabase   transfers = DatabaseFactory.getPushTransferDatabase(context);
+    InputStream            ciphertext;
+    byte[]                 key;
 
     try {
       MasterCipher masterCipher    = new MasterCipher(masterSecret);
       long         contentLocation = Long.parseLong(Util.toIsoString(part.getContentLocation()));
-      byte[]       key             = masterCipher.decryptBytes(Base64.decode(Util.toIsoString(part.getContentDisposition())));
       String       relay           = null;
 
+      key = masterCipher.decryptBytes(Base64.decode(Util.toIsoString(part.getContentDisposition())));
+
       if (part.getName() != null) {
         relay = Util.toIsoString(part.getName());
       }
 
-      attachmentFile              = downloadAttachment(relay, contentLocation);
-      InputStream attachmentInput = new AttachmentCipherInputStream(attachmentFile, key);
-
-      database.updateDownloadedPart(messageId, partId, part, attachmentInput);
+      if (transfers.getAttempts(partId) == 0) {
+        ciphertext = PushServiceSocketFactory.create(context).retrieveAttachmentStream(relay, contentLocation, 0);
+      } else {
+        ciphertext = new FileInputStream(downloadAttachment(transfers, relay, contentLocation, messageId, partId));
+      }
     } catch (NotFoundException e) {
       Log.w("PushDownloader", e);
-      try {
-        database.updateFailedDownloadedPart(messageId, partId, part);
-      } catch (MmsException mme) {
-        Log.w("PushDownloader", mme);
-      }
+      markFailed(database, transfers, messageId, partId, part);
+      return Long.MAX_VALUE;
     } catch (InvalidMessageException e) {
       Log.w("PushDownloader", e);
-      try {
-        database.updateFailedDownloadedPart(messageId, partId, part);
-      } catch (MmsException mme) {
-        Log.w("PushDownloader", mme);
-      }
+      markFailed(database, transfers, messageId, partId, part);
+      return Long.MAX_VALUE;
+    } catch (IOException e) {
+      Log.w("PushDownloader", e);
+      return transfers.recordFailure(partId, messageId);
+    }
+
+    InputStream attachmentInput = ciphertext;
+
+    try {
+      attachmentInput = new AttachmentCipherStreamInputStream(ciphertext, key);
+      database.updateDownloadedPart(messageId, partId, part, attachmentInput);
+      transfers.delete(partId);
     } catch (MmsException e) {
       Log.w("PushDownloader", e);
-      try {
-        database.updateFailedDownloadedPart(messageId, partId, part);
-      } catch (MmsException mme) {
-        Log.w("PushDownloader", mme);
-      }
+      markFailed(database, transfers, messageId, partId, part);
     } catch (IOException e) {
       Log.w("PushDownloader", e);
-      /// XXX schedule some kind of soft failure retry action
+
+      if (isCorrupt(e)) {
+        markFailed(database, transfers, messageId, partId, part);
+      } else {
+        // The network, or local storage such as a full disk. A completed
+        // partial file is fetched again on the retry, which also frees its
+        // space meanwhile.
+        transfers.getPartialFile(partId).delete();
+        return transfers.recordFailure(partId, messageId);
+      }
+    } finally {
+      try {
+        attachmentInput.close();
+      } catch (IOException e) {
+        Log.w("PushDownloader", e);
+      }
+    }
+
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * @return Whether the attachment itself is bad, as opposed to there being
+   *         a problem reading or storing it.
+   */
+  private boolean isCorrupt(IOException e) {
+    return e.getCause() instanceof InvalidMacException ||
+           e.getCause() instanceof GeneralSecurityException;
+  }
+
+  private void markFailed(EncryptingPartDatabase database, PushTransferDatabase transfers,
+                          long messageId, long partId, PduPart part)
+  {
+    transfers.delete(partId);
+
+    try {
+      database.updateFailedDownloadedPart(messageId, partId, part);
+    } catch (MmsException mme) {
+      Log.w("PushDownloader", mme);
+    }
+  }
+
+  /**
+   * Downloads the attachment ciphertext into its partial file, resuming
+   * from the last checkpoint of any earlier attempt.
+   */
+  private File downloadAttachment(PushTransferDatabase transfers, String relay, long contentLocation,
+                                  long messageId, long partId)
+      throws IOException
+  {
+    PushServiceSocket socket      = PushServiceSocketFactory.create(context);
+    File              partialFile = transfers.getPartialFile(partId);
+    long              offset      = partialFile.exists() ? transfers.getOffset(partId) : 0;
+    RandomAccessFile  output      = new RandomAccessFile(partialFile, "rw");
+    InputStream       input       = null;
+
+    try {
+      output.setLength(offset);
+      output.seek(offset);
+
+      if (offset > 0) {
+        Log.w("PushDownloader", "Resuming part " + partId + " from: " + offset);
+      }
+
+      input = socket.retrieveAttachmentStream(relay, contentLocation, offset);
+
+      byte[] buffer          = new byte[8192];
+      long   sinceCheckpoint = 0;
+      int    read;
+
+      while ((read = input.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+        offset          += read;
+        sinceCheckpoint += read;
+
+        if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+          checkpoint(transfers, output, messageId, partId, offset);
+          sinceCheckpoint = 0;
+        }
+      }
+
+      return partialFile;
     } finally {
-      if (attachmentFile != null)
-        attachmentFile.delete();
+      try {
+        checkpoint(transfers, output, messageId, partId, offset);
+      } catch (IOException e) {
+        Log.w("PushDownloader", e);
+      }
+
+      output.close();
+
+      if (input != null) {
+        input.close();
+      }
     }
   }
 
-  private File downloadAttachment(String relay, long contentLocation) throws IOException {
-    PushServiceSocket socket = PushServiceSocketFactory.create(context);
-    return socket.retrieveAttachment(relay, contentLocation);
+  private void checkpoint(PushTransferDatabase transfers, RandomAccessFile output,
+                          long messageId, long partId, long offset)
+      throws IOException
+  {
+    output.getFD().sync();
+    transfers.setOffset(partId, messageId, offset);
+  }
+
+  /**
+   * Sets the retry alarm, unless one is already set to go off sooner.
+   */
+  private void scheduleRetry(long time) {
+    synchronized (queuedDownloads) {
+      if (scheduledRetry > System.currentTimeMillis() && scheduledRetry <= time) {
+        return;
+      }
+
+      scheduledRetry = time;
+    }
+
+    Log.w("PushDownloader", "Scheduling push part download retry for: " + time);
+
+    ((AlarmManager)context.getSystemService(Context.ALARM_SERVICE))
+        .set(AlarmManager.RTC_WAKEUP, time,
+             PendingIntent.getService(context, 0,
+                                      new Intent(SendReceiveService.DOWNLOAD_PUSH_ACTION,
+                                                 null, context, SendReceiveService.class),
+                                      PendingIntent.FLAG_UPDATE_CURRENT));
+  }
+
+  private static class PartDownload {
+    private final MasterSecret masterSecret;
+    private final PduPart      part;
+    private final long         messageId;
+    private final long         partId;
+    private final long         threadId;
+
+    public PartDownload(MasterSecret masterSecret, PduPart part, long messageId, long partId, long threadId) {
+      this.masterSecret = masterSecret;
+      this.part         = part;
+      this.messageId    = messageId;
+      this.partId       = partId;
+      this.threadId     = threadId;
+    }
   }
 
 }
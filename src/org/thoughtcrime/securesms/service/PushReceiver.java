@@ -38,6 +38,13 @@ import org.whispersystems.textsecure.storage.RecipientDevice;
 import org.whispersystems.textsecure.storage.Session;
 import org.whispersystems.textsecure.util.Base64;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
 import ws.com.google.android.mms.MmsException;
 
 import static org.whispersystems.textsecure.push.PushMessageProtos.PushMessageContent.GroupContext.Type;
@@ -57,26 +64,118 @@ public class PushReceiver {
   }
 
   public void process(MasterSecret masterSecret, Intent intent) {
-    if (SendReceiveService.RECEIVE_PUSH_ACTION.equals(intent.getAction())) {
-      handleMessage(masterSecret, intent);
-    } else if (SendReceiveService.DECRYPTED_PUSH_ACTION.equals(intent.getAction())) {
-      handleDecrypt(masterSecret, intent);
+    process(masterSecret, Collections.singletonList(intent));
+  }
+
+  /**
+   * Handles a burst of received messages together. Consecutive text
+   * messages, which make up most of any backlog, are held back and inserted
+   * in a single transaction. They're stored before anything else in the
+   * burst, so messages still land in the order they arrived.
+   */
+  public void process(MasterSecret masterSecret, List<Intent> intents) {
+    ReceivedBatch batch = new ReceivedBatch();
+
+    for (Intent intent : intents) {
+      try {
+        if (SendReceiveService.RECEIVE_PUSH_ACTION.equals(intent.getAction())) {
+          handleMessage(masterSecret, intent, batch);
+        } else if (SendReceiveService.DECRYPTED_PUSH_ACTION.equals(intent.getAction())) {
+          handleDecrypt(masterSecret, intent, batch);
+        }
+      } catch (RuntimeException e) {
+        // Don't let one bad message cost the rest of the burst.
+        Log.w("PushReceiver", e);
+      }
+    }
+
+    handleReceivedBatch(masterSecret, batch);
+  }
+
+  private void handleReceivedBatch(MasterSecret masterSecret, ReceivedBatch batch) {
+    if (batch.textMessages.isEmpty()) {
+      return;
+    }
+
+    List<Long>             storedPushIds       = new LinkedList<Long>();
+    List<Pair<Long, Long>> messageAndThreadIds = insertTextMessages(masterSecret, batch, storedPushIds);
+    Set<Long>              threadIds           = new LinkedHashSet<Long>();
+
+    for (Pair<Long, Long> messageAndThreadId : messageAndThreadIds) {
+      threadIds.add(messageAndThreadId.second);
     }
+
+    for (long threadId : threadIds) {
+      MessageNotifier.updateNotification(context, masterSecret, threadId);
+    }
+
+    if (!storedPushIds.isEmpty()) {
+      DatabaseFactory.getPushDatabase(context).delete(storedPushIds);
+    }
+
+    batch.textMessages.clear();
+    batch.pushIds.clear();
   }
 
-  private void handleDecrypt(MasterSecret masterSecret, Intent intent) {
+  /**
+   * @param storedPushIds Filled with the push rows of the messages that were
+   *                      stored. The rows of any that weren't are left to be
+   *                      decrypted again.
+   */
+  private List<Pair<Long, Long>> insertTextMessages(MasterSecret masterSecret,
+                                                    ReceivedBatch batch,
+                                                    List<Long> storedPushIds)
+  {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+
+    try {
+      List<Pair<Long, Long>> messageAndThreadIds = database.insertDecryptedMessagesInbox(masterSecret,
+                                                                                         batch.textMessages);
+
+      for (long pushId : batch.pushIds) {
+        if (pushId != -1) storedPushIds.add(pushId);
+      }
+
+      return messageAndThreadIds;
+    } catch (RuntimeException e) {
+      Log.w("PushReceiver", e);
+    }
+
+    // The batch was rolled back, so store what can be stored one at a time.
+    List<Pair<Long, Long>> messageAndThreadIds = new LinkedList<Pair<Long, Long>>();
+
+    for (int i=0;i<batch.textMessages.size();i++) {
+      try {
+        messageAndThreadIds.add(database.insertDecryptedMessageInbox(masterSecret,
+                                                                     batch.textMessages.get(i)));
+
+        if (batch.pushIds.get(i) != -1) storedPushIds.add(batch.pushIds.get(i));
+      } catch (RuntimeException e) {
+        Log.w("PushReceiver", e);
+      }
+    }
+
+    return messageAndThreadIds;
+  }
+
+  private void handleDecrypt(MasterSecret masterSecret, Intent intent, ReceivedBatch batch) {
     IncomingPushMessage message   = intent.getParcelableExtra("message");
     long                messageId = intent.getLongExtra("message_id", -1);
     int                 result    = intent.getIntExtra("result", 0);
+    int                 pending   = batch.textMessages.size();
 
-    if      (result == RESULT_OK)             handleReceivedMessage(masterSecret, message, true);
-    else if (result == RESULT_NO_SESSION)     handleReceivedMessageForNoSession(masterSecret, message);
-    else if (result == RESULT_DECRYPT_FAILED) handleReceivedCorruptedMessage(masterSecret, message, true);
+    if      (result == RESULT_OK)             handleReceivedMessage(masterSecret, message, true, batch);
+    else if (result == RESULT_NO_SESSION)     handleReceivedMessageForNoSession(masterSecret, message, batch);
+    else if (result == RESULT_DECRYPT_FAILED) handleReceivedCorruptedMessage(masterSecret, message, true, batch);
 
-    DatabaseFactory.getPushDatabase(context).delete(messageId);
+    if (batch.textMessages.size() > pending) {
+      batch.pushIds.set(pending, messageId);
+    } else {
+      DatabaseFactory.getPushDatabase(context).delete(messageId);
+    }
   }
 
-  private void handleMessage(MasterSecret masterSecret, Intent intent) {
+  private void handleMessage(MasterSecret masterSecret, Intent intent, ReceivedBatch batch) {
     if (intent.getExtras() == null) {
       return;
     }
@@ -87,9 +186,13 @@ public class PushReceiver {
       return;
     }
 
+    if (message.isSecureMessage() || message.isPreKeyBundle()) {
+      handleReceivedBatch(masterSecret, batch);
+    }
+
     if      (message.isSecureMessage()) handleReceivedSecureMessage(masterSecret, message);
     else if (message.isPreKeyBundle())  handleReceivedPreKeyBundle(masterSecret, message);
-    else                                handleReceivedMessage(masterSecret, message, false);
+    else                                handleReceivedMessage(masterSecret, message, false, batch);
   }
 
   private void handleReceivedSecureMessage(MasterSecret masterSecret, IncomingPushMessage message) {
@@ -148,15 +251,23 @@ public class PushReceiver {
 
   private void handleReceivedMessage(MasterSecret masterSecret,
                                      IncomingPushMessage message,
-                                     boolean secure)
+                                     boolean secure,
+                                     ReceivedBatch batch)
   {
     try {
       PushMessageContent messageContent = PushMessageContent.parseFrom(message.getBody());
 
-      if (secure && (messageContent.getFlags() & PushMessageContent.Flags.END_SESSION_VALUE) != 0) {
+      boolean endSession  = secure && (messageContent.getFlags() & PushMessageContent.Flags.END_SESSION_VALUE) != 0;
+      boolean groupUpdate = messageContent.hasGroup() && messageContent.getGroup().getType().getNumber() != Type.DELIVER_VALUE;
+
+      if (endSession || groupUpdate || messageContent.getAttachmentsCount() > 0) {
+        handleReceivedBatch(masterSecret, batch);
+      }
+
+      if (endSession) {
         Log.w("PushReceiver", "Received end session message...");
         handleEndSessionMessage(masterSecret, message, messageContent);
-      } else if (messageContent.hasGroup() && messageContent.getGroup().getType().getNumber() != Type.DELIVER_VALUE) {
+      } else if (groupUpdate) {
         Log.w("PushReceiver", "Received push group message...");
         groupReceiver.process(masterSecret, message, messageContent, secure);
       } else if (messageContent.getAttachmentsCount() > 0) {
@@ -164,11 +275,11 @@ public class PushReceiver {
         handleReceivedMediaMessage(masterSecret, message, messageContent, secure);
       } else {
         Log.w("PushReceiver", "Received push text message...");
-        handleReceivedTextMessage(masterSecret, message, messageContent, secure);
+        handleReceivedTextMessage(message, messageContent, secure, batch);
       }
     } catch (InvalidProtocolBufferException e) {
       Log.w("PushReceiver", e);
-      handleReceivedCorruptedMessage(masterSecret, message, secure);
+      handleReceivedCorruptedMessage(masterSecret, message, secure, batch);
     }
   }
 
@@ -178,13 +289,12 @@ public class PushReceiver {
   {
     try {
       Recipient                 recipient                 = RecipientFactory.getRecipientsFromString(context, message.getSource(), true).getPrimaryRecipient();
-      IncomingTextMessage       incomingTextMessage       = new IncomingTextMessage(message, "", null);
+      IncomingTextMessage       incomingTextMessage       = new IncomingTextMessage(message, messageContent.getBody(), null);
       IncomingEndSessionMessage incomingEndSessionMessage = new IncomingEndSessionMessage(incomingTextMessage);
 
-      EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
-
-      Pair<Long, Long> messageAndThreadId = database.insertMessageInbox(masterSecret, incomingEndSessionMessage);
-      database.updateMessageBody(masterSecret, messageAndThreadId.first, messageContent.getBody());
+      Pair<Long, Long> messageAndThreadId = DatabaseFactory.getEncryptingSmsDatabase(context)
+                                                           .insertDecryptedMessageInbox(masterSecret,
+                                                                                        incomingEndSessionMessage);
 
       Session.abortSessionFor(context, recipient);
       KeyExchangeProcessor.broadcastSecurityUpdateEvent(context, messageAndThreadId.second);
@@ -225,30 +335,30 @@ public class PushReceiver {
     }
   }
 
-  private void handleReceivedTextMessage(MasterSecret masterSecret,
-                                         IncomingPushMessage message,
+  private void handleReceivedTextMessage(IncomingPushMessage message,
                                          PushMessageContent messageContent,
-                                         boolean secure)
+                                         boolean secure,
+                                         ReceivedBatch batch)
   {
-    EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
-    IncomingTextMessage   textMessage = new IncomingTextMessage(message, "",
-                                                                messageContent.hasGroup() ?
-                                                                    messageContent.getGroup() : null);
+    IncomingTextMessage textMessage = new IncomingTextMessage(message, messageContent.getBody(),
+                                                              messageContent.hasGroup() ?
+                                                                  messageContent.getGroup() : null);
 
     if (secure) {
-      textMessage = new IncomingEncryptedMessage(textMessage, "");
+      textMessage = new IncomingEncryptedMessage(textMessage, messageContent.getBody());
     }
 
-    Pair<Long, Long> messageAndThreadId = database.insertMessageInbox(masterSecret, textMessage);
-    database.updateMessageBody(masterSecret, messageAndThreadId.first, messageContent.getBody());
-
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    batch.textMessages.add(textMessage);
+    batch.pushIds.add(-1L);
   }
 
   private void handleReceivedCorruptedMessage(MasterSecret masterSecret,
                                               IncomingPushMessage message,
-                                              boolean secure)
+                                              boolean secure,
+                                              ReceivedBatch batch)
   {
+    handleReceivedBatch(masterSecret, batch);
+
     Pair<Long, Long> messageAndThreadId = insertMessagePlaceholder(masterSecret, message, secure);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsDecryptFailed(messageAndThreadId.first);
 
@@ -273,8 +383,11 @@ public class PushReceiver {
   }
 
   private void handleReceivedMessageForNoSession(MasterSecret masterSecret,
-                                                 IncomingPushMessage message)
+                                                 IncomingPushMessage message,
+                                                 ReceivedBatch batch)
   {
+    handleReceivedBatch(masterSecret, batch);
+
     Pair<Long, Long> messageAndThreadId = insertMessagePlaceholder(masterSecret, message, true);
     DatabaseFactory.getEncryptingSmsDatabase(context).markAsNoSession(messageAndThreadId.first);
     MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
@@ -293,4 +406,13 @@ public class PushReceiver {
     return DatabaseFactory.getEncryptingSmsDatabase(context)
                           .insertMessageInbox(masterSecret, placeholder);
   }
+
+  /**
+   * The text messages waiting to be inserted, each paired with the push row
+   * to delete once it has been, or -1 if it has none.
+   */
+  private static class ReceivedBatch {
+    private final List<IncomingTextMessage> textMessages = new ArrayList<IncomingTextMessage>();
+    private final List<Long>                pushIds      = new ArrayList<Long>();
+  }
 }
@@ -72,6 +72,8 @@ public class SendReceiveService extends Service {
   private static final int DOWNLOAD_PUSH         = 7;
   private static final int DOWNLOAD_AVATAR       = 8;
 
+  private static final int MAX_PUSH_BATCH = 100;
+
   private ToastHandler        toastHandler;
   private SystemStateListener systemStateListener;
 
@@ -259,12 +261,36 @@ public class SendReceiveService extends Service {
       case SEND_MMS:             mmsSender.process(masterSecret, intent);        return;
       case DOWNLOAD_MMS:         mmsDownloader.process(masterSecret, intent);    return;
       case DOWNLOAD_MMS_PENDING: mmsDownloader.process(masterSecret, intent);    return;
-      case RECEIVE_PUSH:         pushReceiver.process(masterSecret, intent);     return;
+      case RECEIVE_PUSH:         pushReceiver.process(masterSecret, takePushBatch()); return;
       case DOWNLOAD_PUSH:        pushDownloader.process(masterSecret, intent);   return;
       case DOWNLOAD_AVATAR:      avatarDownloader.process(masterSecret, intent); return;
       }
     }
 
+    /**
+     * Takes any push messages queued directly behind this one, so that a
+     * backlog delivered all at once can be stored all at once.
+     */
+    private List<Intent> takePushBatch() {
+      List<Intent> batch = new LinkedList<Intent>();
+      batch.add(intent);
+
+      synchronized (workQueue) {
+        while (!workQueue.isEmpty() && batch.size() < MAX_PUSH_BATCH) {
+          Runnable next = workQueue.get(0);
+
+          if (!(next instanceof SendReceiveWorkItem) || ((SendReceiveWorkItem)next).what != RECEIVE_PUSH) {
+            break;
+          }
+
+          workQueue.remove(0);
+          batch.add(((SendReceiveWorkItem)next).intent);
+        }
+      }
+
+      return batch;
+    }
+
     private MasterSecret getPlaceholderSecret() {
       try {
         return MasterSecretUtil.getMasterSecret(SendReceiveService.this,
@@ -17,11 +17,14 @@
 
 package org.thoughtcrime.securesms.transport;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.PartDatabase;
 import org.thoughtcrime.securesms.mms.MmsRadio;
 import org.thoughtcrime.securesms.mms.MmsRadioException;
 import org.thoughtcrime.securesms.mms.MmsSendHelper;
@@ -69,6 +72,8 @@ public class MmsTransport {
       throw new UndeliverableMessageException("MMS Transport is not enabled!");
     }
 
+    loadPartData(message);
+
     try {
       if (isCdmaDevice()) {
         Log.w("MmsTransport", "Sending MMS directly without radio change...");
@@ -108,6 +113,29 @@ public class MmsTransport {
     }
   }
 
+  /**
+   * Media parts aren't loaded with outgoing messages, since push streams them
+   * from disk. An MMS PDU is composed in memory, so they're loaded here.
+   */
+  private void loadPartData(SendReq message) throws UndeliverableMessageException {
+    PartDatabase database = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
+    PduBody      body     = message.getBody();
+
+    for (int i=0;i<body.getPartsNum();i++) {
+      PduPart part = body.getPart(i);
+
+      if (part.getData() == null && part.getDataUri() != null) {
+        PduPart loaded = database.getPart(ContentUris.parseId(part.getDataUri()), true);
+
+        if (loaded == null || loaded.getData() == null) {
+          throw new UndeliverableMessageException("Unable to load part data!");
+        }
+
+        part.setData(loaded.getData());
+      }
+    }
+  }
+
   private MmsSendResult sendMms(SendReq message, boolean usingMmsRadio, boolean useProxy)
       throws IOException, UndeliverableMessageException
   {
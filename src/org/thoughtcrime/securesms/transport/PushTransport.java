@@ -17,6 +17,7 @@
 
 package org.thoughtcrime.securesms.transport;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.util.Log;
 
@@ -26,6 +27,7 @@ import org.thoughtcrime.securesms.crypto.KeyExchangeProcessor;
 import org.thoughtcrime.securesms.crypto.KeyExchangeProcessorV2;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.PartDatabase;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.mms.PartParser;
 import org.thoughtcrime.securesms.push.PushServiceSocketFactory;
@@ -58,12 +60,20 @@ import org.whispersystems.textsecure.storage.SessionRecordV2;
 import org.whispersystems.textsecure.util.Base64;
 import org.whispersystems.textsecure.util.InvalidNumberException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.pdu.PduBody;
+import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.SendReq;
 
 import static org.whispersystems.textsecure.push.PushMessageProtos.IncomingPushMessageSignal;
@@ -72,6 +82,11 @@ import static org.whispersystems.textsecure.push.PushMessageProtos.PushMessageCo
 
 public class PushTransport extends BaseTransport {
 
+  private static final int ATTACHMENT_UPLOAD_CONCURRENCY = 3;
+
+  private static final ExecutorService attachmentExecutor =
+      Executors.newFixedThreadPool(ATTACHMENT_UPLOAD_CONCURRENCY);
+
   private final Context      context;
   private final MasterSecret masterSecret;
 
@@ -160,33 +175,80 @@ public class PushTransport extends BaseTransport {
     }
   }
 
-  private List<PushAttachmentPointer> getPushAttachmentPointers(PushServiceSocket socket, PduBody body)
+  /**
+   * Uploads a message's attachments in parallel, each one allocating its
+   * attachment id and then streaming its encrypted upload. If any upload
+   * fails, the rest of the message's uploads are cancelled.
+   */
+  private List<PushAttachmentPointer> getPushAttachmentPointers(final PushServiceSocket socket, PduBody body)
       throws IOException
   {
-    List<PushAttachmentPointer> attachments = new LinkedList<PushAttachmentPointer>();
+    List<Future<PushAttachmentPointer>> uploads  = new LinkedList<Future<PushAttachmentPointer>>();
+    boolean                             complete = false;
 
-    for (int i=0;i<body.getPartsNum();i++) {
-      String contentType = Util.toIsoString(body.getPart(i).getContentType());
-      if (ContentType.isImageType(contentType) ||
-          ContentType.isAudioType(contentType) ||
-          ContentType.isVideoType(contentType))
-      {
-        attachments.add(getPushAttachmentPointer(socket, contentType, body.getPart(i).getData()));
+    try {
+      for (int i=0;i<body.getPartsNum();i++) {
+        final String  contentType = Util.toIsoString(body.getPart(i).getContentType());
+        final PduPart part        = body.getPart(i);
+
+        if (ContentType.isImageType(contentType) ||
+            ContentType.isAudioType(contentType) ||
+            ContentType.isVideoType(contentType))
+        {
+          uploads.add(attachmentExecutor.submit(new Callable<PushAttachmentPointer>() {
+            @Override
+            public PushAttachmentPointer call() throws IOException {
+              return getPushAttachmentPointer(socket, contentType, part);
+            }
+          }));
+        }
+      }
+
+      List<PushAttachmentPointer> attachments = new LinkedList<PushAttachmentPointer>();
+
+      for (Future<PushAttachmentPointer> upload : uploads) {
+        attachments.add(upload.get());
       }
-    }
 
-    return attachments;
+      complete = true;
+      return attachments;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if      (e.getCause() instanceof IOException)      throw (IOException)e.getCause();
+      else if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else if (e.getCause() instanceof Error)            throw (Error)e.getCause();
+      else                                               throw new IOException(e.getCause());
+    } finally {
+      if (!complete) {
+        for (Future<PushAttachmentPointer> upload : uploads) {
+          upload.cancel(true);
+        }
+      }
+    }
   }
 
   private PushAttachmentPointer getPushAttachmentPointer(PushServiceSocket socket,
-                                                         String contentType, byte[] data)
+                                                         String contentType, PduPart part)
       throws IOException
   {
-    AttachmentCipher   cipher               = new AttachmentCipher();
-    byte[]             key                  = cipher.getCombinedKeyMaterial();
-    byte[]             ciphertextAttachment = cipher.encrypt(data);
-    PushAttachmentData attachmentData       = new PushAttachmentData(contentType, ciphertextAttachment);
-    long               attachmentId         = socket.sendAttachment(attachmentData);
+    byte[]      key = new AttachmentCipher().getCombinedKeyMaterial();
+    InputStream data;
+    long        dataSize;
+
+    if (part.getData() != null) {
+      data     = new ByteArrayInputStream(part.getData());
+      dataSize = part.getData().length;
+    } else {
+      PartDatabase database = DatabaseFactory.getEncryptingPartDatabase(context, masterSecret);
+      long         partId   = ContentUris.parseId(part.getDataUri());
+
+      dataSize = database.getPartSize(partId);
+      data     = database.getPartStream(partId);
+    }
+
+    PushAttachmentData attachmentData = new PushAttachmentData(contentType, data, dataSize, key);
+    long               attachmentId   = socket.sendAttachment(attachmentData);
 
     return new PushAttachmentPointer(contentType, attachmentId, key);
   }
@@ -8,12 +8,17 @@ import org.whispersystems.textsecure.push.ContactTokenDetails;
 import org.whispersystems.textsecure.push.PushServiceSocket;
 import org.whispersystems.textsecure.util.DirectoryUtil;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class DirectoryHelper {
 
+  private static final long STALE_INTERVAL   = 7 * 24 * 60 * 60 * 1000L; // 7 days.
+  private static final int  PAGE_SIZE        = 1000;
+  private static final int  PAGE_CONCURRENCY = 3;
+
   public static void refreshDirectory(final Context context) {
     refreshDirectory(context, PushServiceSocketFactory.create(context));
   }
@@ -23,19 +28,62 @@ public class DirectoryHelper {
   }
 
   public static void refreshDirectory(final Context context, final PushServiceSocket socket, final String localNumber) {
-    Directory                 directory              = Directory.getInstance(context);
-    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-    Map<String, String>       tokenMap               = DirectoryUtil.getDirectoryServerTokenMap(eligibleContactNumbers);
-    List<ContactTokenDetails> activeTokens           = socket.retrieveDirectory(tokenMap.keySet());
+    Directory   directory              = Directory.getInstance(context);
+    long        refreshTime            = System.currentTimeMillis();
+    Set<String> eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
+
+    refreshDirectory(context, socket, directory, eligibleContactNumbers, refreshTime);
+  }
+
+  /**
+   * Only queries numbers from contacts that changed since the last refresh,
+   * along with directory entries that have gone stale.
+   */
+  public static void refreshDirectoryIncremental(final Context context) {
+    Directory         directory              = Directory.getInstance(context);
+    PushServiceSocket socket                 = PushServiceSocketFactory.create(context);
+    String            localNumber            = TextSecurePreferences.getLocalNumber(context);
+    long              refreshTime            = System.currentTimeMillis();
+    long              lastRefreshTime        = TextSecurePreferences.getDirectoryContactsTime(context);
+    Set<String>       eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber,
+                                                                                       lastRefreshTime,
+                                                                                       refreshTime - STALE_INTERVAL);
+
+    refreshDirectory(context, socket, directory, eligibleContactNumbers, refreshTime);
+  }
+
+  private static void refreshDirectory(final Context context, final PushServiceSocket socket,
+                                       final Directory directory, final Set<String> eligibleContactNumbers,
+                                       final long refreshTime)
+  {
+    if (eligibleContactNumbers.isEmpty()) {
+      TextSecurePreferences.setDirectoryContactsTime(context, refreshTime);
+      return;
+    }
+
+    final Map<String, String> tokenMap = DirectoryUtil.getDirectoryServerTokenMap(eligibleContactNumbers);
+
+    boolean success = socket.retrieveDirectory(tokenMap.keySet(), PAGE_SIZE, PAGE_CONCURRENCY,
+                                               new PushServiceSocket.DirectoryPageListener() {
+      @Override
+      public void onPage(List<String> contactTokens, List<ContactTokenDetails> activeTokens) {
+        Set<String> inactiveNumbers = new HashSet<String>(contactTokens.size());
+
+        for (String contactToken : contactTokens) {
+          inactiveNumbers.add(tokenMap.get(contactToken));
+        }
 
+        for (ContactTokenDetails activeToken : activeTokens) {
+          inactiveNumbers.remove(tokenMap.get(activeToken.getToken()));
+          activeToken.setNumber(tokenMap.get(activeToken.getToken()));
+        }
 
-    if (activeTokens != null) {
-      for (ContactTokenDetails activeToken : activeTokens) {
-        eligibleContactNumbers.remove(tokenMap.get(activeToken.getToken()));
-        activeToken.setNumber(tokenMap.get(activeToken.getToken()));
+        directory.setNumbers(activeTokens, inactiveNumbers);
       }
+    });
 
-      directory.setNumbers(activeTokens, eligibleContactNumbers);
+    if (success) {
+      TextSecurePreferences.setDirectoryContactsTime(context, refreshTime);
     }
   }
 }
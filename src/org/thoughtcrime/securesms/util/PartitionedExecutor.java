@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs tasks on a bounded thread pool, while guaranteeing that tasks
+ * submitted under the same partition key run one at a time, in the order
+ * they were submitted. Partitions take turns on the pool one task at a
+ * time, so a single busy partition can't starve the others.
+ */
+public class PartitionedExecutor {
+
+  private final String                            name;
+  private final int                               maxPending;
+  private final ExecutorService                   executor;
+  private final Map<Object, LinkedList<Runnable>> partitions = new HashMap<Object, LinkedList<Runnable>>();
+
+  private int  pending;
+  private long completed;
+
+  public PartitionedExecutor(String name, int threads, int maxPending) {
+    this.name       = name;
+    this.maxPending = maxPending;
+    this.executor   = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Queues a task without ever blocking the caller.
+   */
+  public void execute(Object partition, Runnable task) {
+    synchronized (this) {
+      enqueue(partition, task);
+    }
+  }
+
+  /**
+   * Queues a task, first waiting for the number of pending tasks to drop
+   * below the limit. Intended for bulk producers running on a thread of
+   * their own, since the wait can last as long as the backlog.
+   *
+   * @return false if the caller was interrupted while waiting, in which
+   *         case the task was not queued.
+   */
+  public boolean executeWithBackpressure(Object partition, Runnable task) {
+    synchronized (this) {
+      while (pending >= maxPending) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Log.w(name, e);
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+
+      enqueue(partition, task);
+      return true;
+    }
+  }
+
+  public synchronized int getPendingCount() {
+    return pending;
+  }
+
+  public synchronized long getCompletedCount() {
+    return completed;
+  }
+
+  private void enqueue(Object partition, Runnable task) {
+    LinkedList<Runnable> queue = partitions.get(partition);
+
+    pending++;
+
+    if (queue != null) {
+      queue.add(task);
+    } else {
+      queue = new LinkedList<Runnable>();
+      queue.add(task);
+      partitions.put(partition, queue);
+      executor.execute(new PartitionRunner(partition));
+    }
+  }
+
+  private class PartitionRunner implements Runnable {
+    private final Object partition;
+
+    public PartitionRunner(Object partition) {
+      this.partition = partition;
+    }
+
+    @Override
+    public void run() {
+      Runnable task;
+
+      synchronized (PartitionedExecutor.this) {
+        task = partitions.get(partition).getFirst();
+      }
+
+      try {
+        task.run();
+      } finally {
+        synchronized (PartitionedExecutor.this) {
+          LinkedList<Runnable> queue = partitions.get(partition);
+          queue.removeFirst();
+
+          pending--;
+          completed++;
+
+          if (queue.isEmpty()) partitions.remove(partition);
+          else                 executor.execute(this);
+
+          if (pending == 0) {
+            Log.w(name, "Queue drained, " + completed + " tasks completed.");
+          }
+
+          PartitionedExecutor.this.notifyAll();
+        }
+      }
+    }
+  }
+}
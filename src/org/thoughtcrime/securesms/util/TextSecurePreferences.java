@@ -42,6 +42,7 @@ public class TextSecurePreferences {
   private static final String PROMPTED_DEFAULT_SMS_PREF        = "pref_prompted_default_sms";
   private static final String SIGNALING_KEY_PREF               = "pref_signaling_key";
   private static final String DIRECTORY_FRESH_TIME_PREF        = "pref_directory_refresh_time";
+  private static final String DIRECTORY_CONTACTS_TIME_PREF     = "pref_directory_contacts_time";
   private static final String IN_THREAD_NOTIFICATION_PREF      = "pref_key_inthread_notifications";
 
   private static final String LOCAL_REGISTRATION_ID_PREF       = "pref_local_registration_id";
@@ -71,6 +72,14 @@ public class TextSecurePreferences {
     setLongPreference(context, DIRECTORY_FRESH_TIME_PREF, value);
   }
 
+  public static long getDirectoryContactsTime(Context context) {
+    return getLongPreference(context, DIRECTORY_CONTACTS_TIME_PREF, 0L);
+  }
+
+  public static void setDirectoryContactsTime(Context context, long value) {
+    setLongPreference(context, DIRECTORY_CONTACTS_TIME_PREF, value);
+  }
+
   public static String getLocalNumber(Context context) {
     return getStringPreference(context, LOCAL_NUMBER_PREF, "No Stored Number");
   }